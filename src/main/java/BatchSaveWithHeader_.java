@@ -0,0 +1,214 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.gui.GenericDialog;
+import ij.io.FileInfo;
+import ij.plugin.PlugIn;
+
+import java.awt.GraphicsEnvironment;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Headless, macro-recordable batch version of SaveWithHeader_.
+ * Every image in the input directory is saved as &lt;name&gt;.raw behind the header of the file given
+ * by the header pattern ({name} is replaced by the image name without extension). A header length
+ * of -1 detects it from the header file size; known headers are served from HeaderIndex.
+ * With rescale enabled each image's straight-line calibration (e.g. DICOM slope/intercept) is applied
+ * while converting. Exports run concurrently on a bounded pool; a memory budget limits how much image data is open at once.
+ * <p>
+ * Example: {@code run("Save With Header (Batch)", "input=/recon filter=*.tif header=/scans/{name}.img
+ * length=1024 image=[16-bit signed] output=/export threads=4 memory=2048 rescale");}
+ */
+public final class BatchSaveWithHeader_ implements PlugIn {
+
+    private static final String TITLE = "Save with Header (Batch)";
+    private static final long MB = 1L << 20;
+
+    private String inputDir = "", filter = "*.tif", headerPattern = "", outputDir = "";
+    private String typeChoice = "16-bit signed";
+    private String metricsFile = "";
+    private long headerLength = 1024;
+    private boolean rescale;
+    private int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int memoryMB = (int) Math.max(64, IJ.maxMemory() / 4 / MB);
+
+    @Override
+    public void run(String arg) {
+        boolean ok = GraphicsEnvironment.isHeadless() ? readMacroOptions(Macro.getOptions()) : showDialog();
+        if (!ok) return;
+        int fileType = SaveWithHeader_.fileTypeOf(typeChoice);
+        if (fileType < 0 || threads < 1 || memoryMB < 1) {
+            IJ.error(TITLE, "Invalid parameters");
+            return;
+        }
+        File[] inputs = listInputs();
+        if (inputs == null || inputs.length == 0) {
+            IJ.error(TITLE, "No input files matching " + filter + " in " + inputDir);
+            return;
+        }
+        new File(outputDir).mkdirs();
+        exportAll(inputs, fileType);
+        if (!metricsFile.isEmpty()) {
+            try {
+                Metrics.writeJson(new File(metricsFile).toPath());
+            } catch (IOException e) {
+                IJ.log(TITLE + ": failed to write metrics: " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean showDialog() {
+        GenericDialog gd = new GenericDialog(TITLE);
+        gd.addDirectoryField("Input directory:", inputDir);
+        gd.addStringField("Filter (glob):", filter);
+        gd.addStringField("Header source pattern ({name} = image name):", headerPattern, 40);
+        gd.addNumericField("Length of header (bytes, -1 = detect):", headerLength, 0);
+        gd.addChoice("Image Data Type:", SaveWithHeader_.types, typeChoice);
+        gd.addCheckbox("Rescale with image calibration (slope/intercept)", rescale);
+        gd.addDirectoryField("Output directory:", outputDir);
+        gd.addNumericField("Threads:", threads, 0);
+        gd.addNumericField("Memory limit (MB):", memoryMB, 0);
+        gd.addStringField("Metrics JSON file (optional):", metricsFile, 40);
+        gd.showDialog();
+        if (gd.wasCanceled()) return false;
+        inputDir = gd.getNextString();
+        filter = gd.getNextString();
+        headerPattern = gd.getNextString();
+        headerLength = (long) gd.getNextNumber();
+        typeChoice = gd.getNextChoice();
+        rescale = gd.getNextBoolean();
+        outputDir = gd.getNextString();
+        threads = (int) gd.getNextNumber();
+        memoryMB = (int) gd.getNextNumber();
+        metricsFile = gd.getNextString().trim();
+        return true;
+    }
+
+    /** 无界面时直接解析宏参数，键名与对话框标签的首个单词一致 */
+    private boolean readMacroOptions(String options) {
+        if (options == null) {
+            IJ.log(TITLE + ": no arguments (input=... header=... output=...)");
+            return false;
+        }
+        inputDir = Macro.getValue(options, "input", inputDir);
+        filter = Macro.getValue(options, "filter", filter);
+        headerPattern = Macro.getValue(options, "header", headerPattern);
+        typeChoice = Macro.getValue(options, "image", typeChoice);
+        outputDir = Macro.getValue(options, "output", outputDir);
+        metricsFile = Macro.getValue(options, "metrics", metricsFile).trim();
+        rescale = (" " + options + " ").contains(" rescale ");
+        try {
+            headerLength = Long.parseLong(Macro.getValue(options, "length", "" + headerLength));
+            threads = Integer.parseInt(Macro.getValue(options, "threads", "" + threads));
+            memoryMB = Integer.parseInt(Macro.getValue(options, "memory", "" + memoryMB));
+        } catch (NumberFormatException e) {
+            IJ.log(TITLE + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private File[] listInputs() {
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + filter);
+        FileFilter accept = f -> f.isFile() && matcher.matches(f.toPath().getFileName());
+        File[] files = new File(inputDir).listFiles(accept);
+        if (files != null) Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * 有界线程池并发导出。提交前按输入文件大小申请内存配额（Semaphore，单位 MB），
+     * 配额不足时提交线程阻塞，从而限制同时打开的像素数据总量。
+     */
+    private void exportAll(File[] inputs, int fileType) {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        Semaphore budget = new Semaphore(memoryMB);
+        AtomicInteger done = new AtomicInteger();
+        AtomicInteger failed = new AtomicInteger();
+        List<Future<?>> jobs = new ArrayList<>();
+        long t0 = System.currentTimeMillis();
+        try {
+            for (File input : inputs) {
+                int permits = (int) Math.min(memoryMB, Math.max(1, (input.length() + MB - 1) / MB));
+                budget.acquire(permits);
+                jobs.add(pool.submit(() -> {
+                    try {
+                        String msg = exportOne(input, fileType);
+                        if (msg != null) {
+                            failed.incrementAndGet();
+                            IJ.log("Failed " + input.getName() + ": " + msg);
+                        }
+                    } finally {
+                        budget.release(permits);
+                        IJ.showProgress(done.incrementAndGet(), inputs.length);
+                    }
+                }));
+            }
+            pool.shutdown();
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            for (Future<?> f : jobs) f.cancel(true);
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+        IJ.log(TITLE + ": " + (done.get() - failed.get()) + "/" + inputs.length + " exported, "
+                + failed.get() + " failed, " + IJ.d2s((System.currentTimeMillis() - t0) / 1000.0, 1) + " s");
+        IJ.showStatus("Save completed");
+    }
+
+    /** 导出一个文件，成功返回 null，否则返回错误信息 */
+    private String exportOne(File input, int fileType) {
+        String name = input.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        File headerFile = new File(headerPattern.replace("{name}", base));
+        File target = new File(outputDir, base + ".raw");
+        if (!headerFile.isFile()) return "header file not found: " + headerFile;
+        if (headerFile.getAbsolutePath().equals(target.getAbsolutePath()))
+            return "source and target file paths cannot be the same";
+
+        ImagePlus imp = null;
+        try {
+            imp = IJ.openImage(input.getPath());
+            if (imp == null) return "cannot open image";
+            long length = headerLength;
+            long dataBytes = SaveWithHeader_.sourceDataBytes(imp);
+            if (length < 0) {
+                // 自动检测：按图像的原始布局由文件大小推算（HeaderIndex 只提供经过推算验证的记录）
+                if (dataBytes < 0) return "cannot detect the header length: the image has no raw source layout";
+                length = HeaderIndex.knownLength(headerFile, dataBytes);
+                if (length < 0) length = HeaderIndex.detect(headerFile, dataBytes);
+                if (length < 0) return "header file is smaller than the image data";
+            }
+            if (headerFile.length() < length) return "header file is smaller than header length";
+            RawHeader header = HeaderIndex.header(headerFile, length, dataBytes);
+            FileInfo fi = SaveWithHeader_.exportInfo(imp, fileType, header);
+            fi.fileName = target.getPath();
+            if (rescale) {
+                double[] c = SaveWithHeader_.rescaleOf(imp);
+                SaveWithHeader_.setRescale(fi, c[1], c[0]);
+            }
+            long bytes = fi.getOffset() + RawStackWriter.sliceBytes(fi) * fi.nImages;
+            Metrics.measured(new RawStackWriter(fi, imp.getStack()), bytes).write(header, target.toPath(), s -> { });
+            return null;
+        } catch (Exception e) {
+            return e.getMessage();
+        } finally {
+            if (imp != null) imp.flush();
+        }
+    }
+}
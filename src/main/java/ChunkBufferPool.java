@@ -0,0 +1,49 @@
+import ij.io.FileInfo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Direct chunk buffers kept across exports, so consecutive saves reuse the buffers of earlier ones
+ * instead of allocating new direct memory (which is only freed by the GC) every time.
+ * At most MAX_POOLED_BYTES are kept; beyond that the buffers returned first are dropped.
+ */
+final class ChunkBufferPool {
+
+    static final long MAX_POOLED_BYTES = 128L << 20;
+
+    private static final ArrayDeque<ByteBuffer> pooled = new ArrayDeque<>();
+    private static long pooledBytes;
+
+    private ChunkBufferPool() {
+    }
+
+    /** 一个块的缓冲区（见 RawStackWriter.allocateChunkBuffer）：优先取容量够用且不超过两倍的空闲缓冲区 */
+    static ByteBuffer take(FileInfo fi) {
+        long bytes = (long) RawStackWriter.chunkPixels(fi) * fi.getBytesPerPixel();
+        ByteBuffer buffer = null;
+        synchronized (ChunkBufferPool.class) {
+            for (Iterator<ByteBuffer> it = pooled.iterator(); it.hasNext(); ) {
+                ByteBuffer b = it.next();
+                if (b.capacity() >= bytes && b.capacity() <= 2 * bytes) {
+                    it.remove();
+                    pooledBytes -= b.capacity();
+                    buffer = b;
+                    break;
+                }
+            }
+        }
+        if (buffer == null) return RawStackWriter.allocateChunkBuffer(fi);
+        buffer.clear();
+        return buffer.order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    }
+
+    /** 归还不再使用的缓冲区（调用方之后不得再访问） */
+    static synchronized void release(ByteBuffer buffer) {
+        pooled.addLast(buffer);
+        pooledBytes += buffer.capacity();
+        while (pooledBytes > MAX_POOLED_BYTES) pooledBytes -= pooled.removeFirst().capacity();
+    }
+}
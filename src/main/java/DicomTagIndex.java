@@ -0,0 +1,94 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Tag -> value index of the DICOM header text ImageJ keeps in the slice labels or the "Info" property.
+ * The text is parsed in one pass (lines of the form "gggg,eeee  Description: value"); indexes are
+ * cached per image and slice in a weak map and rebuilt only when the underlying text changes.
+ * As with a plain indexOf search, the first occurrence of a tag wins.
+ */
+final class DicomTagIndex {
+
+    private static final Map<ImagePlus, Map<Integer, DicomTagIndex>> cache = new WeakHashMap<>();
+
+    private final String source;
+    private final Map<String, String> tags;
+
+    private DicomTagIndex(String source, Map<String, String> tags) {
+        this.source = source;
+        this.tags = tags;
+    }
+
+    /** 图像级标签：第 1 个 slice 的标签（含 DICOM 头时），否则为 "Info" 属性 */
+    static DicomTagIndex of(ImagePlus imp) {
+        return forSlice(imp, 1);
+    }
+
+    /** 第 n 个 slice 的标签（多文件序列每个 slice 各有一份头），否则退回 "Info" 属性；都没有时返回 null */
+    static synchronized DicomTagIndex forSlice(ImagePlus imp, int n) {
+        ImageStack stack = imp.getStack();
+        String meta = n >= 1 && n <= stack.getSize() ? stack.getSliceLabel(n) : null;
+        if (meta == null || !meta.contains("0010,0010")) {
+            Object info = imp.getProperty("Info");
+            meta = info instanceof String ? (String) info : null;
+            n = 0; // 图像级
+        }
+        if (meta == null) return null;
+        Map<Integer, DicomTagIndex> slices = cache.computeIfAbsent(imp, k -> new HashMap<>());
+        DicomTagIndex index = slices.get(n);
+        if (index == null || index.source != meta) {
+            index = parse(meta);
+            slices.put(n, index);
+        }
+        return index;
+    }
+
+    /** 逐行解析 "gggg,eeee  描述: 值"；没有 ": " 时值为整行（与原 getDicomValue 一致），空值忽略 */
+    static DicomTagIndex parse(String meta) {
+        Map<String, String> tags = new HashMap<>();
+        int start = 0, length = meta.length();
+        while (start < length) {
+            int end = meta.indexOf('\n', start);
+            if (end < 0) end = length;
+            int k = start;
+            while (k < end && (meta.charAt(k) == '>' || meta.charAt(k) == ' ')) k++; // 序列项前缀
+            if (end - k >= 9 && isTag(meta, k)) {
+                String tag = meta.substring(k, k + 9);
+                if (!tags.containsKey(tag)) {
+                    int colon = meta.indexOf(": ", k);
+                    String value = (colon > 0 && colon < end ? meta.substring(colon + 2, end) : meta.substring(k, end)).trim();
+                    if (!value.isEmpty()) tags.put(tag, value);
+                }
+            }
+            start = end + 1;
+        }
+        return new DicomTagIndex(meta, tags);
+    }
+
+    private static boolean isTag(String s, int k) {
+        if (s.charAt(k + 4) != ',') return false;
+        for (int i = 0; i < 9; i++)
+            if (i != 4 && Character.digit(s.charAt(k + i), 16) < 0) return false;
+        return true;
+    }
+
+    /** 标签值，例如 get("0028,1053")；不存在时返回 null */
+    String get(String tag) {
+        return tags.get(tag);
+    }
+
+    double getDouble(String tag, double defaultValue) {
+        String v = tags.get(tag);
+        try {
+            // 多值字段（如窗宽窗位 "40\\400"）取第一个
+            if (v != null && v.indexOf('\\') > 0) v = v.substring(0, v.indexOf('\\'));
+            return v != null ? Double.parseDouble(v.trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
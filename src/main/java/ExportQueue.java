@@ -0,0 +1,203 @@
+import ij.IJ;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Process-wide queue for the exports started from SaveWithHeader_.
+ * Jobs run in queue order, but at most {@link #JOBS_PER_DEVICE} at a time per target file store
+ * (so parallel saves do not thrash one disk), and only while the estimated buffer memory of the
+ * running jobs fits the global budget; a job that does not fit waits until others finish, except
+ * when nothing else is running. Jobs can be cancelled at any time: a queued job is dropped, a
+ * running one stops at the next slice boundary and its partial output is deleted (unless the
+ * writer updates the target in place, see StackWriter.keepsPartialOutput).
+ */
+final class ExportQueue {
+
+    /** 同一设备（FileStore）上同时运行的导出数 */
+    static final int JOBS_PER_DEVICE = 1;
+    /** 所有运行中导出的缓冲区合计上限 */
+    static final long MEMORY_BUDGET_BYTES = Math.max(256L << 20, IJ.maxMemory() / 4);
+
+    enum State { QUEUED, RUNNING, DONE, FAILED, CANCELLED }
+
+    /** 一个导出任务；回调在导出线程上执行 */
+    static final class Job {
+        private static final AtomicInteger ids = new AtomicInteger();
+
+        final int id = ids.incrementAndGet();
+        final String name;
+        final int nSlices;
+        private final StackWriter writer;
+        private final RawHeader header;
+        private final Path target;
+        private final Object device;
+        private final long memory;
+        private final IntConsumer progress;
+        private final Consumer<Job> done;
+        private volatile State state = State.QUEUED;
+        private volatile boolean cancelled;
+        private volatile int slicesDone;
+        private volatile Throwable error;
+
+        private Job(String name, int nSlices, StackWriter writer, RawHeader header, Path target,
+                    IntConsumer progress, Consumer<Job> done) {
+            this.name = name;
+            this.nSlices = nSlices;
+            this.writer = writer;
+            this.header = header;
+            this.target = target;
+            this.device = deviceOf(target);
+            this.memory = writer.bufferBytes();
+            this.progress = progress;
+            this.done = done;
+        }
+
+        State state() {
+            return state;
+        }
+
+        Throwable error() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            String s = "#" + id + " " + name + " [" + state;
+            if (state == State.RUNNING) s += " " + slicesDone + "/" + nSlices;
+            return s + "]";
+        }
+    }
+
+    private static final ExportQueue instance = new ExportQueue();
+
+    private final LinkedList<Job> queued = new LinkedList<>();
+    private final List<Job> running = new ArrayList<>();
+    private final Map<Object, Integer> busyDevices = new HashMap<>();
+    private long memoryInUse;
+    private final ExecutorService executor = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "SaveWithHeader-export");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private ExportQueue() {
+    }
+
+    static ExportQueue get() {
+        return instance;
+    }
+
+    /** 加入队列；progress 在每个 slice 写完后收到其序号，done 在任务结束（含失败、取消）时调用 */
+    Job submit(String name, int nSlices, StackWriter writer, RawHeader header, Path target,
+               IntConsumer progress, Consumer<Job> done) {
+        Job job = new Job(name, nSlices, writer, header, target, progress, done);
+        synchronized (this) {
+            queued.add(job);
+            dispatch();
+        }
+        return job;
+    }
+
+    /** 排队中的任务直接移除；运行中的任务在下一个 slice 边界停止 */
+    void cancel(Job job) {
+        boolean removed;
+        synchronized (this) {
+            job.cancelled = true;
+            removed = queued.remove(job);
+        }
+        if (removed) finish(job, State.CANCELLED, null);
+    }
+
+    /** 排队中的任务移到队首 */
+    synchronized void moveToFront(Job job) {
+        if (queued.remove(job)) queued.addFirst(job);
+        dispatch();
+    }
+
+    /** 运行中与排队中的任务（按执行顺序） */
+    synchronized List<Job> jobs() {
+        List<Job> all = new ArrayList<>(running);
+        all.addAll(queued);
+        return all;
+    }
+
+    /** 按队列顺序启动设备空闲且内存预算允许的任务 */
+    private void dispatch() {
+        for (Iterator<Job> it = queued.iterator(); it.hasNext(); ) {
+            Job job = it.next();
+            if (busyDevices.getOrDefault(job.device, 0) >= JOBS_PER_DEVICE) continue;
+            if (!running.isEmpty() && memoryInUse + job.memory > MEMORY_BUDGET_BYTES) continue;
+            it.remove();
+            running.add(job);
+            busyDevices.merge(job.device, 1, Integer::sum);
+            memoryInUse += job.memory;
+            job.state = State.RUNNING;
+            executor.execute(() -> run(job));
+        }
+    }
+
+    private void run(Job job) {
+        State state = State.DONE;
+        Throwable error = null;
+        try {
+            job.writer.write(job.header, job.target, slice -> {
+                // 协作式取消：在 slice 之间检查
+                if (job.cancelled) throw new CancellationException();
+                job.slicesDone = slice;
+                job.progress.accept(slice);
+            });
+            if (job.cancelled) state = State.CANCELLED;
+        } catch (CancellationException e) {
+            state = State.CANCELLED;
+        } catch (Throwable e) {
+            state = job.cancelled ? State.CANCELLED : State.FAILED;
+            error = e;
+        }
+        if (state == State.CANCELLED && !job.writer.keepsPartialOutput()) {
+            try {
+                Files.deleteIfExists(job.target);
+            } catch (IOException ignored) {
+                // 保留不完整的文件
+            }
+        }
+        synchronized (this) {
+            running.remove(job);
+            busyDevices.merge(job.device, -1, Integer::sum);
+            memoryInUse -= job.memory;
+            dispatch();
+        }
+        finish(job, state, error);
+    }
+
+    private static void finish(Job job, State state, Throwable error) {
+        job.error = error;
+        job.state = state;
+        job.done.accept(job);
+    }
+
+    /** 目标所在的 FileStore；无法确定时按根路径区分 */
+    private static Object deviceOf(Path target) {
+        Path dir = target.toAbsolutePath().getParent();
+        try {
+            if (dir != null) return Files.getFileStore(dir);
+        } catch (IOException ignored) {
+            // 目录不可访问时退回根路径
+        }
+        return target.toAbsolutePath().getRoot();
+    }
+}
@@ -0,0 +1,63 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.io.FileInfo;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The part of a stack that is exported: a rectangle of every slice in a slice range.
+ * Writers take the slices of the range from the source stack and gather the rows of the
+ * rectangle straight from the slice arrays into their output buffers (see PixelKernels), so a
+ * cropped sub-volume is written without duplicating or cropping the image first.
+ */
+final class ExportRegion {
+
+    /** 区域（源图像坐标），slice 范围为 [firstSlice, lastSlice]，从 1 开始 */
+    final Rectangle bounds;
+    final int firstSlice, lastSlice;
+    private final int sourceWidth;
+
+    ExportRegion(int sourceWidth, Rectangle bounds, int firstSlice, int lastSlice) {
+        this.sourceWidth = sourceWidth;
+        this.bounds = bounds;
+        this.firstSlice = firstSlice;
+        this.lastSlice = lastSlice;
+    }
+
+    /** 整个 stack */
+    static ExportRegion of(ImageStack stack) {
+        return new ExportRegion(stack.getWidth(), new Rectangle(0, 0, stack.getWidth(), stack.getHeight()), 1, stack.getSize());
+    }
+
+    /** 当前 ROI 的外接矩形（无 ROI 时为整幅）与 slice 范围；范围越界时返回 null */
+    static ExportRegion of(ImagePlus imp, boolean useRoi, int firstSlice, int lastSlice) {
+        Roi roi = useRoi ? imp.getRoi() : null;
+        Rectangle r = roi != null && roi.isArea() ? roi.getBounds().intersection(new Rectangle(0, 0, imp.getWidth(), imp.getHeight()))
+                : new Rectangle(0, 0, imp.getWidth(), imp.getHeight());
+        if (r.isEmpty() || firstSlice < 1 || lastSlice > imp.getStackSize() || firstSlice > lastSlice) return null;
+        return new ExportRegion(imp.getWidth(), r, firstSlice, lastSlice);
+    }
+
+    int slices() {
+        return lastSlice - firstSlice + 1;
+    }
+
+    boolean isWhole(ImagePlus imp) {
+        return bounds.x == 0 && bounds.y == 0 && bounds.width == imp.getWidth()
+                && bounds.height == imp.getHeight() && firstSlice == 1 && lastSlice == imp.getStackSize();
+    }
+
+    /** 将区域内第 [from, to) 个像素（按行）转换写入 dst，见 PixelKernels.encode */
+    void encode(Object pixels, FileInfo fi, int from, int to, ByteBuffer dst) throws IOException {
+        PixelKernels.encode(pixels, sourceWidth, bounds, fi, from, to, dst);
+    }
+
+    @Override
+    public String toString() {
+        return bounds.width + "x" + bounds.height + "+" + bounds.x + "+" + bounds.y
+                + ", slices " + firstSlice + "-" + lastSlice;
+    }
+}
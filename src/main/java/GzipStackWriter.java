@@ -0,0 +1,215 @@
+import ij.ImageStack;
+import ij.io.FileInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * pigz-style compressed variant of ParallelStackWriter.
+ * The output is a multi-member gzip stream that decompresses to exactly the header + raw file:
+ * the header is the first member, then every block of at most BLOCK_BYTES is converted and
+ * deflated into its own member on a ForkJoinPool, while the calling thread appends the members
+ * in order. Each in-flight block owns its buffers and Deflater, which are reused for later blocks.
+ */
+final class GzipStackWriter implements StackWriter {
+
+    /** 每个 gzip member 的未压缩大小上限；较小的块使单个大 slice 也能并行压缩 */
+    static final int BLOCK_BYTES = 4 << 20;
+    static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    // ID1 ID2 CM=deflate FLG=0 MTIME=0 XFL=0 OS=unknown
+    private static final byte[] MEMBER_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final FileInfo fi;
+    private final ImageStack stack;
+    private final ExportRegion region;
+    private final int threads;
+
+    GzipStackWriter(FileInfo fi, ImageStack stack) {
+        this(fi, stack, Runtime.getRuntime().availableProcessors());
+    }
+
+    GzipStackWriter(FileInfo fi, ImageStack stack, int threads) {
+        this(fi, stack, ExportRegion.of(stack), threads);
+    }
+
+    GzipStackWriter(FileInfo fi, ImageStack stack, ExportRegion region) {
+        this(fi, stack, region, Runtime.getRuntime().availableProcessors());
+    }
+
+    GzipStackWriter(FileInfo fi, ImageStack stack, ExportRegion region, int threads) {
+        this.fi = fi;
+        this.stack = stack;
+        this.region = region;
+        this.threads = Math.max(1, threads);
+    }
+
+    /** 每块像素数：不超过 BLOCK_BYTES，也不跨 slice */
+    int blockPixels() {
+        return Math.max(1, Math.min(fi.width * fi.height, BLOCK_BYTES / fi.getBytesPerPixel()));
+    }
+
+    /** 在途块数：每个线程两个，原始与压缩缓冲区合计受 ParallelStackWriter.MAX_IN_FLIGHT_BYTES 限制 */
+    int depth() {
+        long blockBytes = 2L * blockPixels() * fi.getBytesPerPixel();
+        return (int) Math.max(2, Math.min(2L * threads, ParallelStackWriter.MAX_IN_FLIGHT_BYTES / blockBytes));
+    }
+
+    @Override
+    public long bufferBytes() {
+        return depth() * 2L * blockPixels() * fi.getBytesPerPixel();
+    }
+
+    @Override
+    public void write(RawHeader header, Path target, IntConsumer progress) throws IOException {
+        int depth = depth();
+        int n = fi.width * fi.height;
+        int chunk = blockPixels();
+        int chunksPerSlice = (n + chunk - 1) / chunk;
+        long total = (long) chunksPerSlice * fi.nImages;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ArrayDeque<Block> free = new ArrayDeque<>(depth);
+        List<Block> allocated = new ArrayList<>(depth);
+        ArrayDeque<Future<Block>> inFlight = new ArrayDeque<>(depth);
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             SlicePrefetcher slices = SlicePrefetcher.forRange(stack, region.firstSlice, region.lastSlice)) {
+            OutputStream file = Channels.newOutputStream(out);
+            writeHeaderMember(header, file);
+
+            Object pixels = null;
+            long submitted = 0;
+            for (long written = 0; written < total; ) {
+                while (inFlight.size() < depth && submitted < total) {
+                    int k = (int) (submitted % chunksPerSlice);
+                    if (k == 0) pixels = slices.next();
+                    Block block = free.poll();
+                    if (block == null) {
+                        block = new Block(chunk * fi.getBytesPerPixel(), fi.intelByteOrder);
+                        allocated.add(block);
+                    }
+                    Object src = pixels;
+                    Block b = block;
+                    int from = k * chunk;
+                    inFlight.add(pool.submit(() -> {
+                        b.deflate(region, src, fi, from, Math.min(n, from + chunk));
+                        return b;
+                    }));
+                    submitted++;
+                }
+                // 按顺序追加 member
+                int slice = (int) (written / chunksPerSlice) + 1;
+                Metrics.QUEUE_DEPTH.record(inFlight.size());
+                Block done = await(inFlight.poll(), slice);
+                long t0 = System.nanoTime();
+                done.member.writeTo(file);
+                Metrics.recordNanos(Metrics.WRITE, System.nanoTime() - t0);
+                free.add(done);
+                if (++written % chunksPerSlice == 0) progress.accept(slice);
+            }
+        } finally {
+            for (Future<Block> f : inFlight) f.cancel(true);
+            pool.shutdownNow();
+            // 等正在压缩的任务结束后再释放所有块的 Deflater（native zlib 内存）；等待失败时只释放空闲块
+            boolean idle = awaitTermination(pool);
+            for (Block b : idle ? allocated : free) b.deflater.end();
+        }
+    }
+
+    /** header 作为第一个 member（边读边压缩，header 可超过 2 GB） */
+    private static void writeHeaderMember(RawHeader header, OutputStream file) throws IOException {
+        OutputStream keepOpen = new FilterOutputStream(file) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        try (GZIPOutputStream gz = new GZIPOutputStream(keepOpen, 1 << 16)) {
+            header.copyTo(Channels.newChannel(gz));
+        }
+    }
+
+    private static boolean awaitTermination(ForkJoinPool pool) {
+        try {
+            // Deflater.deflate 不响应中断，最多等当前块压缩完
+            return pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static Block await(Future<Block> f, int slice) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing slice " + slice);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Failed to compress slice " + slice + ": " + cause, cause);
+        }
+    }
+
+    /** 一个块的转换缓冲区、Deflater 与压缩后的完整 gzip member */
+    private static final class Block {
+        final ByteBuffer raw;
+        final Deflater deflater = new Deflater(LEVEL, true);
+        final CRC32 crc = new CRC32();
+        final ByteArrayOutputStream member;
+        final byte[] tmp = new byte[1 << 16];
+
+        Block(int bytes, boolean littleEndian) {
+            raw = ByteBuffer.allocate(bytes).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+            member = new ByteArrayOutputStream(bytes / 2);
+        }
+
+        void deflate(ExportRegion region, Object pixels, FileInfo fi, int from, int to) throws IOException {
+            long t0 = System.nanoTime();
+            region.encode(pixels, fi, from, to, raw);
+            long t1 = System.nanoTime();
+            Metrics.recordNanos(Metrics.CONVERT, t1 - t0);
+            int len = raw.limit();
+            crc.reset();
+            crc.update(raw.array(), 0, len);
+            deflater.reset();
+            deflater.setInput(raw.array(), 0, len);
+            deflater.finish();
+            member.reset();
+            member.write(MEMBER_HEADER);
+            while (!deflater.finished()) member.write(tmp, 0, deflater.deflate(tmp));
+            writeIntLE(crc.getValue());
+            writeIntLE(len); // ISIZE
+            Metrics.recordNanos(Metrics.COMPRESS, System.nanoTime() - t1);
+        }
+
+        private void writeIntLE(long v) {
+            for (int i = 0; i < 4; i++) member.write((int) (v >>> (8 * i)) & 0xff);
+        }
+    }
+}
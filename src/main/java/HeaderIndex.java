@@ -0,0 +1,194 @@
+import ij.IJ;
+import ij.Prefs;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Header-length detection plus a small on-disk index of known headers.
+ * The header length of a source scan is its file size minus the raw data size; once a header
+ * has been used it is recorded (keyed by path, size and modification time) together with a
+ * copy of its bytes, so repeated exports against the same scan neither guess nor re-read it.
+ * Only lengths that agree with the file size are offered for detection again; a length typed in
+ * by hand is cached but never served as a detected length.
+ */
+final class HeaderIndex {
+
+    /** 超过此大小的 header 只记录长度，不缓存字节 */
+    static final long MAX_CACHED_BYTES = 16L << 20;
+    static final int MAX_ENTRIES = 256;
+    /** 只有 lastUsed 变化时，最多每隔这么久写一次索引文件 */
+    static final long LAST_USED_SAVE_MS = 60_000;
+
+    private static final String INDEX_FILE = "index.properties";
+    private static Properties index;
+    private static long savedAt;
+
+    private HeaderIndex() {
+    }
+
+    /** header 长度 = 源文件大小 - 像素数据大小；结果为负说明源文件比图像数据还小 */
+    static long detect(File source, long dataBytes) {
+        return source.length() - dataBytes;
+    }
+
+    /**
+     * 源文件未变化、记录的长度由文件大小推算得到且仍与 detect(source, dataBytes) 一致时返回该长度，否则返回 -1
+     */
+    static synchronized long knownLength(File source, long dataBytes) {
+        String[] e = entry(source);
+        if (e == null || !"1".equals(e[5])) return -1;
+        long length = Long.parseLong(e[2]);
+        return length == detect(source, dataBytes) ? length : -1;
+    }
+
+    /**
+     * Returns the header of source with the given length, served from the cached copy when the
+     * index has one for the unchanged file; otherwise copies it into the cache and records it.
+     * The length is marked as detected only if it equals detect(source, dataBytes).
+     */
+    static synchronized RawHeader header(File source, long length, long dataBytes) {
+        boolean detected = dataBytes >= 0 && length == detect(source, dataBytes);
+        String[] e = entry(source);
+        if (e != null && Long.parseLong(e[2]) == length && !e[3].isEmpty()) {
+            File copy = new File(cacheDir(), e[3]);
+            if (copy.length() == length) {
+                put(source, length, e[3], detected);
+                return RawHeader.ofCopy(source, copy, length);
+            }
+        }
+        String name = "";
+        if (length <= MAX_CACHED_BYTES) {
+            name = cacheName(source);
+            if (!copyHeader(source, new File(cacheDir(), name), length)) name = "";
+        }
+        put(source, length, name, detected);
+        return RawHeader.ofFile(source, length);
+    }
+
+    // 索引项：size,mtime,headerLength,cacheName,lastUsed,detected（1 表示长度由文件大小推算得到）
+    private static String[] entry(File source) {
+        String v = load().getProperty(source.getAbsolutePath());
+        if (v == null) return null;
+        String[] e = v.split(",", -1);
+        if (e.length != 6 || Long.parseLong(e[0]) != source.length() || Long.parseLong(e[1]) != source.lastModified())
+            return null;
+        return e;
+    }
+
+    private static void put(File source, long length, String cacheName, boolean detected) {
+        Properties p = load();
+        long now = System.currentTimeMillis();
+        String[] value = {String.valueOf(source.length()), String.valueOf(source.lastModified()),
+                String.valueOf(length), cacheName, String.valueOf(now), detected ? "1" : "0"};
+        String old = (String) p.setProperty(source.getAbsolutePath(), String.join(",", value));
+        // 缓存命中只更新 lastUsed：先留在内存中，随下次变更或间隔 LAST_USED_SAVE_MS 后写出
+        if (old != null && onlyLastUsedDiffers(old.split(",", -1), value) && now - savedAt < LAST_USED_SAVE_MS) return;
+        while (p.size() > MAX_ENTRIES) evictOldest(p);
+        save(p);
+    }
+
+    private static boolean onlyLastUsedDiffers(String[] old, String[] value) {
+        if (old.length != value.length) return false;
+        for (int i = 0; i < value.length; i++)
+            if (i != 4 && !old[i].equals(value[i])) return false;
+        return true;
+    }
+
+    private static void evictOldest(Properties p) {
+        String oldest = null;
+        long oldestTime = Long.MAX_VALUE;
+        for (String key : p.stringPropertyNames()) {
+            String[] e = p.getProperty(key).split(",", -1);
+            long t = e.length == 6 ? Long.parseLong(e[4]) : 0;
+            if (t < oldestTime) {
+                oldestTime = t;
+                oldest = key;
+            }
+        }
+        String[] e = p.getProperty(oldest).split(",", -1);
+        p.remove(oldest);
+        if (e.length == 6 && !e[3].isEmpty() && !isReferenced(p, e[3])) new File(cacheDir(), e[3]).delete();
+    }
+
+    private static boolean isReferenced(Properties p, String cacheName) {
+        for (String key : p.stringPropertyNames())
+            if (p.getProperty(key).contains("," + cacheName + ",")) return true;
+        return false;
+    }
+
+    /** 缓存文件名：绝对路径的 SHA-1 */
+    private static String cacheName(File source) {
+        return pathDigest(source) + ".hdr";
+    }
+
+    /** 绝对路径的 SHA-1（十六进制），用作缓存目录中的文件名 */
+    static String pathDigest(File file) {
+        try {
+            byte[] d = MessageDigest.getInstance("SHA-1").digest(
+                    file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (byte b : d) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(file.getAbsolutePath().hashCode());
+        }
+    }
+
+    private static boolean copyHeader(File source, File copy, long length) {
+        try (FileChannel out = FileChannel.open(copy.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            RawHeader.ofFile(source, length).copyTo(out);
+            return true;
+        } catch (IOException e) {
+            copy.delete();
+            return false;
+        }
+    }
+
+    static File cacheDir() {
+        File dir = new File(Prefs.getPrefsDir(), "SaveWithHeader");
+        dir.mkdirs();
+        return dir;
+    }
+
+    private static Properties load() {
+        if (index != null) return index;
+        index = new Properties();
+        File f = new File(cacheDir(), INDEX_FILE);
+        if (f.isFile()) {
+            try (InputStream in = Files.newInputStream(f.toPath())) {
+                index.load(in);
+            } catch (IOException | IllegalArgumentException e) {
+                index.clear();
+            }
+        }
+        // 丢弃格式不正确的项（包括不带 detected 标记的旧格式项）
+        List<String> bad = new ArrayList<>();
+        for (String key : index.stringPropertyNames())
+            if (!index.getProperty(key).matches("\\d+,\\d+,\\d+,[^,]*,\\d+,[01]")) bad.add(key);
+        for (String key : bad) index.remove(key);
+        return index;
+    }
+
+    private static void save(Properties p) {
+        File f = new File(cacheDir(), INDEX_FILE);
+        try (OutputStream out = Files.newOutputStream(f.toPath())) {
+            p.store(out, "SaveWithHeader header index: path=size,mtime,headerLength,cacheFile,lastUsed,detected");
+            savedAt = System.currentTimeMillis();
+        } catch (IOException e) {
+            IJ.log("HeaderIndex: " + e.getMessage());
+        }
+    }
+}
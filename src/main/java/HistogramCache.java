@@ -0,0 +1,163 @@
+import ij.ImageListener;
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.gui.RoiListener;
+import ij.measure.Calibration;
+import ij.process.ImageStatistics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Uncalibrated 256-bin histograms for the Auto window/level action, cached per (image, slice, ROI).
+ * Entries of an image are dropped when its ROI is modified (RoiListener) or when it is updated
+ * without a slice or display range change, i.e. when its pixels were edited. Each entry also keeps
+ * a sampled fingerprint of the slice, so edits that slip past those events are still noticed.
+ * The whole-stack histogram is cached per image as well.
+ * The cache registers itself as a global ImageJ listener; call dispose when its owner goes away.
+ */
+final class HistogramCache implements ImageListener, RoiListener {
+
+    /** 每个图像最多缓存的 (slice, ROI) 项 */
+    static final int MAX_ENTRIES_PER_IMAGE = 512;
+    /** 指纹采样的像素数 */
+    static final int FINGERPRINT_SAMPLES = 4096;
+    /** 整个 stack 的项（采样 / 全部像素），与 ROI 无关（以 ':' 结尾） */
+    private static final String STACK_KEY = "stack:", STACK_FULL_KEY = "stack-full:";
+
+    /** Auto 所需的直方图与统计量 */
+    static final class Histogram {
+        final int[] histogram;
+        final long pixelCount;
+        final double histMin, binSize, min, max;
+        final long fingerprint;
+
+        Histogram(int[] histogram, long pixelCount, double histMin, double binSize, double min, double max, long fingerprint) {
+            this.histogram = histogram;
+            this.pixelCount = pixelCount;
+            this.histMin = histMin;
+            this.binSize = binSize;
+            this.min = min;
+            this.max = max;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final Map<ImagePlus, Map<String, Histogram>> cache = new WeakHashMap<>();
+    /** 每个图像最近一次更新时的 {slice, min, max}，用于区分翻页、调窗与像素修改 */
+    private final Map<ImagePlus, double[]> lastSeen = new WeakHashMap<>();
+
+    HistogramCache() {
+        ImagePlus.addImageListener(this);
+        Roi.addRoiListener(this);
+    }
+
+    /** 注销监听器并清空缓存 */
+    synchronized void dispose() {
+        ImagePlus.removeImageListener(this);
+        Roi.removeRoiListener(this);
+        cache.clear();
+        lastSeen.clear();
+    }
+
+    /** imp 当前 slice 与 ROI 的直方图（不含标定），未缓存或已失效时重新统计 */
+    synchronized Histogram get(ImagePlus imp) {
+        Map<String, Histogram> entries = entries(imp);
+        String key = key(imp);
+        long fingerprint = fingerprint(imp.getProcessor().getPixels());
+        Histogram e = entries.get(key);
+        if (e != null && e.fingerprint == fingerprint) return e;
+
+        Calibration cal = imp.getCalibration();
+        imp.setCalibration(null);
+        ImageStatistics stats = imp.getStatistics();
+        imp.setCalibration(cal);
+        e = new Histogram(stats.histogram.clone(), stats.pixelCount, stats.histMin, stats.binSize,
+                stats.min, stats.max, fingerprint);
+        entries.put(key, e);
+        return e;
+    }
+
+    /** 整个 stack 的直方图（见 StackHistogram），直到像素被修改或图像关闭前一直有效 */
+    synchronized Histogram getStack(ImagePlus imp, boolean sample) {
+        Map<String, Histogram> entries = entries(imp);
+        String key = sample ? STACK_KEY : STACK_FULL_KEY;
+        Histogram e = entries.get(key);
+        if (e == null) {
+            e = StackHistogram.of(imp, sample);
+            if (e != null) entries.put(key, e);
+        }
+        return e;
+    }
+
+    private Map<String, Histogram> entries(ImagePlus imp) {
+        Map<String, Histogram> entries = cache.get(imp);
+        if (entries == null) {
+            entries = new LinkedHashMap<String, Histogram>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Histogram> eldest) {
+                    return size() > MAX_ENTRIES_PER_IMAGE;
+                }
+            };
+            cache.put(imp, entries);
+        }
+        return entries;
+    }
+
+    /** 缓存键：slice 与 ROI（类型、范围与对象标识） */
+    private static String key(ImagePlus imp) {
+        Roi roi = imp.getRoi();
+        String r = roi == null ? "" : roi.getTypeAsString() + roi.getBounds() + "@" + System.identityHashCode(roi);
+        return imp.getCurrentSlice() + ":" + r;
+    }
+
+    /** 等间隔采样约 FINGERPRINT_SAMPLES 个像素的哈希 */
+    static long fingerprint(Object pixels) {
+        long h = 17;
+        if (pixels instanceof short[]) {
+            short[] p = (short[]) pixels;
+            for (int i = 0, step = Math.max(1, p.length / FINGERPRINT_SAMPLES); i < p.length; i += step) h = 31 * h + p[i];
+        } else if (pixels instanceof float[]) {
+            float[] p = (float[]) pixels;
+            for (int i = 0, step = Math.max(1, p.length / FINGERPRINT_SAMPLES); i < p.length; i += step)
+                h = 31 * h + Float.floatToIntBits(p[i]);
+        } else if (pixels instanceof byte[]) {
+            byte[] p = (byte[]) pixels;
+            for (int i = 0, step = Math.max(1, p.length / FINGERPRINT_SAMPLES); i < p.length; i += step) h = 31 * h + p[i];
+        } else if (pixels instanceof int[]) {
+            int[] p = (int[]) pixels;
+            for (int i = 0, step = Math.max(1, p.length / FINGERPRINT_SAMPLES); i < p.length; i += step) h = 31 * h + p[i];
+        }
+        return h;
+    }
+
+    @Override
+    public void imageOpened(ImagePlus imp) {
+    }
+
+    @Override
+    public synchronized void imageClosed(ImagePlus imp) {
+        cache.remove(imp);
+        lastSeen.remove(imp);
+    }
+
+    /** slice 与显示范围都没有变化的更新视为像素被修改 */
+    @Override
+    public synchronized void imageUpdated(ImagePlus imp) {
+        double[] now = {imp.getCurrentSlice(), imp.getDisplayRangeMin(), imp.getDisplayRangeMax()};
+        double[] before = lastSeen.put(imp, now);
+        if (before != null && before[0] == now[0] && before[1] == now[1] && before[2] == now[2])
+            cache.remove(imp);
+    }
+
+    /** ROI 变化时丢弃该图像所有带 ROI 的项 */
+    @Override
+    public synchronized void roiModified(ImagePlus imp, int id) {
+        Map<String, Histogram> entries = imp != null ? cache.get(imp) : null;
+        if (entries == null) return;
+        for (Iterator<String> it = entries.keySet().iterator(); it.hasNext(); )
+            if (!it.next().endsWith(":")) it.remove();
+    }
+}
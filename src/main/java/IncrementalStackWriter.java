@@ -0,0 +1,129 @@
+import ij.IJ;
+import ij.ImageStack;
+import ij.io.FileInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CancellationException;
+import java.util.function.IntConsumer;
+
+/**
+ * Re-saves a stack to a target written before, rewriting only the slices that changed.
+ * Every slice is still converted (see PixelKernels), but its checksum is compared with the one
+ * recorded by the previous save (see SliceChecksums) and only differing slices are written, with
+ * positional FileChannel writes at their offsets; the header is left alone unless it changed too.
+ * Without a valid record (first save, target modified elsewhere, different layout) the whole file
+ * is written and the checksums are recorded for next time.
+ * Cancelling part way keeps the target: the record is updated for the slices processed so far, so
+ * the next save still rewrites exactly what differs. After any other failure a slice or the header
+ * may be half written, so the record is dropped and the next save writes the whole file.
+ */
+final class IncrementalStackWriter implements StackWriter {
+
+    private final FileInfo fi;
+    private final ImageStack stack;
+    private final ExportRegion region;
+    private volatile long bytesWritten = -1;
+
+    IncrementalStackWriter(FileInfo fi, ImageStack stack) {
+        this(fi, stack, ExportRegion.of(stack));
+    }
+
+    IncrementalStackWriter(FileInfo fi, ImageStack stack, ExportRegion region) {
+        this.fi = fi;
+        this.stack = stack;
+        this.region = region;
+    }
+
+    @Override
+    public void write(RawHeader header, Path target, IntConsumer progress) throws IOException {
+        int n = fi.width * fi.height;
+        int bpp = fi.getBytesPerPixel();
+        int chunk = RawStackWriter.chunkPixels(fi);
+        int chunksPerSlice = (n + chunk - 1) / chunk;
+        long headerLength = fi.getOffset();
+        long sliceBytes = RawStackWriter.sliceBytes(fi);
+        String layout = SliceChecksums.layout(fi);
+
+        SliceChecksums.Hasher hasher = new SliceChecksums.Hasher();
+        SliceChecksums previous = SliceChecksums.load(target, layout);
+        if (previous != null && previous.chunks.length != chunksPerSlice * fi.nImages) previous = null;
+        SliceChecksums current = new SliceChecksums(hasher.of(header), new long[chunksPerSlice * fi.nImages]);
+        int processed = 0; // 已处理（校验值已确定）的块数
+        int rewritten = 0;
+        long written = 0;
+        boolean saved = false;
+        try {
+            try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                 SlicePrefetcher slices = SlicePrefetcher.forRange(stack, region.firstSlice, region.lastSlice)) {
+                if (previous == null || previous.header != current.header) {
+                    out.position(0);
+                    header.copyTo(out);
+                    written += headerLength;
+                }
+                ByteBuffer buffer = RawStackWriter.allocateChunkBuffer(fi);
+                for (int s = 0; s < fi.nImages; s++) {
+                    Object pixels = slices.next();
+                    boolean changed = false;
+                    for (int from = 0; from < n; from += chunk) {
+                        long t0 = System.nanoTime();
+                        region.encode(pixels, fi, from, Math.min(n, from + chunk), buffer);
+                        long sum = hasher.of(buffer);
+                        long t1 = System.nanoTime();
+                        Metrics.recordNanos(Metrics.CONVERT, t1 - t0);
+                        if (previous == null || previous.chunks[processed] != sum) {
+                            // 定位写入：不移动 channel 的 position，也不触及其他 slice
+                            long pos = headerLength + s * sliceBytes + (long) from * bpp;
+                            written += buffer.remaining();
+                            while (buffer.hasRemaining()) pos += out.write(buffer, pos);
+                            Metrics.recordNanos(Metrics.WRITE, System.nanoTime() - t1);
+                            changed = true;
+                        }
+                        current.chunks[processed++] = sum;
+                    }
+                    if (changed) rewritten++;
+                    progress.accept(s + 1);
+                }
+                // 整体写出时去掉旧文件多余的尾部
+                if (previous == null) out.truncate(headerLength + sliceBytes * fi.nImages);
+            }
+            current.save(target, layout);
+            saved = true;
+        } catch (CancellationException e) {
+            // 在 slice 边界取消：已处理的块都已完整写入，未处理的块沿用旧值（无旧记录时文件不完整，不记录）
+            if (previous != null) {
+                System.arraycopy(previous.chunks, processed, current.chunks, processed, current.chunks.length - processed);
+                current.save(target, layout);
+                saved = true;
+            }
+            throw e;
+        } finally {
+            // 其他异常时 header 或某个块可能只写了一部分：丢弃记录，下次整体重写
+            if (!saved) SliceChecksums.remove(target);
+            bytesWritten = written;
+        }
+        if (IJ.debugMode)
+            IJ.log("Save with Header: " + (previous == null ? "wrote all " + fi.nImages + " slices"
+                    : "rewrote " + rewritten + " of " + fi.nImages + " slices") + " (" + target.getFileName() + ")");
+    }
+
+    /** 上次 write 实际写出的 header 与像素字节数 */
+    @Override
+    public long bytesWritten() {
+        return bytesWritten;
+    }
+
+    @Override
+    public long bufferBytes() {
+        return (long) RawStackWriter.chunkPixels(fi) * fi.getBytesPerPixel();
+    }
+
+    /** 取消时目标中未处理的 slice 仍是上次的数据，删除会丢失整个文件 */
+    @Override
+    public boolean keepsPartialOutput() {
+        return true;
+    }
+}
@@ -0,0 +1,180 @@
+import ij.ImagePlus;
+import ij.gui.ImageCanvas;
+import ij.gui.Overlay;
+import ij.gui.Roi;
+import ij.process.ImageProcessor;
+
+import java.awt.Graphics;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Fast display path for window/level changes on 16-bit images.
+ * The display range is turned into a 65536-entry byte LUT (the same mapping ShortProcessor uses),
+ * recently used LUTs are kept in a small LRU cache, and only the visible part of the slice is
+ * mapped, in parallel row bands, into a reused 8-bit image that is painted straight onto the canvas,
+ * followed by the overlay and the ROI so they stay visible during drags.
+ * The 8-bit image is kept per ImagePlus, so linked windows of different sizes do not reallocate it every frame.
+ * ImageJ's own display image is not touched; the caller commits it with updateAndDraw() later.
+ * While dragging, large views can be rendered from a downsampled level (see PreviewPyramid).
+ */
+final class LutRenderer {
+
+    /** 最近使用的 LUT 数量（每个 64 KB），足够覆盖常用预设之间的切换 */
+    static final int LUT_CACHE_SIZE = 16;
+    /** 可见像素少于此值时单线程映射 */
+    static final int PARALLEL_PIXELS = 1 << 18;
+
+    private final Map<Long, byte[]> luts = new LinkedHashMap<Long, byte[]>(LUT_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > LUT_CACHE_SIZE;
+        }
+    };
+    private final Map<ImagePlus, BufferedImage> images = new WeakHashMap<>();
+
+    /** 16-bit 灰度、已显示且未处于阈值显示时可用 */
+    static boolean supports(ImagePlus imp) {
+        ImageProcessor ip = imp.getProcessor();
+        return imp.getBitDepth() == 16 && !imp.isComposite() && imp.getCanvas() != null
+                && ip.getMinThreshold() == ImageProcessor.NO_THRESHOLD
+                && ip.getColorModel() instanceof IndexColorModel;
+    }
+
+    /** 按当前显示范围渲染 imp 的可见区域并绘制到画布；不支持时返回 false */
+    boolean paint(ImagePlus imp) {
+        return paint(imp, null);
+    }
+
+    /** level 不为 null 时由该降采样层渲染可见区域（拖动时的预览），否则使用全分辨率像素 */
+    boolean paint(ImagePlus imp, PreviewPyramid.Level level) {
+        if (!supports(imp)) return false;
+        ImageProcessor ip = imp.getProcessor();
+        ImageCanvas ic = imp.getCanvas();
+        Rectangle src = ic.getSrcRect();
+        double mag = ic.getMagnification();
+        byte[] lut = lut((int) ip.getMin(), (int) ip.getMax());
+        BufferedImage img;
+        int dx0 = 0, dy0 = 0, dx1 = (int) (src.width * mag + 0.5), dy1 = (int) (src.height * mag + 0.5);
+        if (level == null) {
+            img = image(imp, src.width, src.height, ip.getColorModel());
+            map((short[]) ip.getPixels(), ip.getWidth(), src, lut, buffer(img));
+        } else {
+            // 覆盖可见区域的降采样块，绘制时按块在原图中的位置对齐
+            int f = PreviewPyramid.FACTOR;
+            Rectangle ls = new Rectangle(src.x / f, src.y / f, 0, 0);
+            ls.width = Math.min(level.width, (src.x + src.width + f - 1) / f) - ls.x;
+            ls.height = Math.min(level.height, (src.y + src.height + f - 1) / f) - ls.y;
+            img = image(imp, ls.width, ls.height, ip.getColorModel());
+            map(level.pixels, level.width, ls, lut, buffer(img));
+            dx0 = (int) Math.floor((ls.x * f - src.x) * mag);
+            dy0 = (int) Math.floor((ls.y * f - src.y) * mag);
+            dx1 = (int) Math.ceil(((ls.x + ls.width) * f - src.x) * mag);
+            dy1 = (int) Math.ceil(((ls.y + ls.height) * f - src.y) * mag);
+        }
+
+        return draw(imp, ic, img, dx0, dy0, dx1, dy1, 0, 0, img.getWidth(), img.getHeight());
+    }
+
+    private static boolean draw(ImagePlus imp, ImageCanvas ic, BufferedImage img, int dx0, int dy0, int dx1, int dy1,
+                                int sx0, int sy0, int sx1, int sy1) {
+        Graphics g = ic.getGraphics();
+        if (g == null) return false;
+        try {
+            g.drawImage(img, dx0, dy0, dx1, dy1, sx0, sy0, sx1, sy1, null);
+            drawOverlay(imp, g);
+            Roi roi = imp.getRoi();
+            if (roi != null) roi.draw(g);
+        } finally {
+            g.dispose();
+        }
+        return true;
+    }
+
+    /** 重画 imp 当前位置可见的 overlay 元素（ImageCanvas 自己画 overlay 的方法不对外公开） */
+    private static void drawOverlay(ImagePlus imp, Graphics g) {
+        Overlay overlay = imp.getOverlay();
+        if (overlay == null || imp.getHideOverlay()) return;
+        for (Roi roi : overlay.toArray()) {
+            if (!visible(imp, roi)) continue;
+            ImagePlus owner = roi.getImage();
+            roi.setImage(imp); // 按画布的缩放与偏移绘制
+            roi.drawOverlay(g);
+            roi.setImage(owner);
+        }
+    }
+
+    private static boolean visible(ImagePlus imp, Roi roi) {
+        if (roi.hasHyperStackPosition())
+            return (roi.getCPosition() == 0 || roi.getCPosition() == imp.getChannel())
+                    && (roi.getZPosition() == 0 || roi.getZPosition() == imp.getSlice())
+                    && (roi.getTPosition() == 0 || roi.getTPosition() == imp.getFrame());
+        return roi.getPosition() == 0 || roi.getPosition() == imp.getCurrentSlice();
+    }
+
+    /** [min, max] 对应的 LUT，优先取缓存 */
+    synchronized byte[] lut(int min, int max) {
+        long key = ((long) min << 32) | (max & 0xffffffffL);
+        byte[] lut = luts.get(key);
+        if (lut == null) {
+            lut = new byte[65536];
+            build(lut, min, max);
+            luts.put(key, lut);
+        }
+        return lut;
+    }
+
+    /** 与 ShortProcessor 生成 8-bit 显示图像的映射一致：(v - min) * 256 / (max - min + 1) */
+    static void build(byte[] lut, int min, int max) {
+        double scale = 256.0 / (max - min + 1);
+        for (int v = 0; v < 65536; v++) {
+            int value = v - min;
+            if (value < 0) value = 0;
+            value = (int) (value * scale + 0.5);
+            if (value > 255) value = 255;
+            lut[v] = (byte) value;
+        }
+    }
+
+    /** 将 pixels 中 src 区域经 lut 映射到 out（行宽 src.width），大区域按行带并行 */
+    static void map(short[] pixels, int width, Rectangle src, byte[] lut, byte[] out) {
+        int rows = src.height;
+        int bands = (long) src.width * rows < PARALLEL_PIXELS ? 1
+                : Math.min(rows, 4 * Runtime.getRuntime().availableProcessors());
+        int rowsPerBand = (rows + bands - 1) / bands;
+        IntStream range = IntStream.range(0, bands);
+        (bands > 1 ? range.parallel() : range).forEach(b -> {
+            int end = Math.min(rows, (b + 1) * rowsPerBand);
+            for (int y = b * rowsPerBand; y < end; y++) {
+                int si = (src.y + y) * width + src.x;
+                int di = y * src.width;
+                for (int x = 0; x < src.width; x++) out[di + x] = lut[pixels[si + x] & 0xffff];
+            }
+        });
+    }
+
+    /** imp 复用的 8-bit 显示图像；尺寸或颜色表变化时重建 */
+    private BufferedImage image(ImagePlus imp, int w, int h, ColorModel cm) {
+        BufferedImage image = images.get(imp);
+        if (image == null || image.getWidth() != w || image.getHeight() != h || image.getColorModel() != cm) {
+            WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(w * h),
+                    w, h, w, 1, new int[]{0}, null);
+            image = new BufferedImage(cm, raster, false, null);
+            images.put(imp, image);
+        }
+        return image;
+    }
+
+    private static byte[] buffer(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+}
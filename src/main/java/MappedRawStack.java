@@ -0,0 +1,155 @@
+import ij.IJ;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Virtual stack over a header + raw file that is never written back.
+ * Nothing is read when the stack is created; each slice is memory-mapped and decoded when
+ * ImageJ asks for it. Edited slices are kept in memory (copy on write) and served from there, so
+ * edits survive slice changes and are what SaveWithHeader_ exports, while the file stays as it is. Decoding is the inverse of PixelKernels.encode without rescale, so a volume
+ * saved with SaveWithHeader_ opens with the same pixel values it was saved from.
+ * Mappings are dropped right after decoding, but Java only unmaps them when they are garbage
+ * collected; Windows keeps a mapped file locked until then, so there slices are read with
+ * positional channel reads instead.
+ */
+final class MappedRawStack extends VirtualStack {
+
+    private final FileInfo fi;
+    private final File file;
+    /** setPixels 写入的 slice（1-based），代替文件中的数据 */
+    private final Map<Integer, Object> edited = new HashMap<>();
+
+    MappedRawStack(FileInfo fi) {
+        super(fi.width, fi.height, null, fi.directory);
+        this.fi = fi;
+        this.file = new File(fi.getFilePath());
+    }
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        try {
+            Object pixels;
+            synchronized (edited) {
+                pixels = edited.get(n);
+            }
+            if (pixels == null) pixels = readSlice(n);
+            return pixels instanceof short[]
+                    ? new ShortProcessor(fi.width, fi.height, (short[]) pixels, null)
+                    : new FloatProcessor(fi.width, fi.height, (float[]) pixels);
+        } catch (IOException e) {
+            IJ.log("MappedRawStack: slice " + n + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /** 映射第 n 个 slice（1-based）并解码为 short[]（16-bit）或 float[] */
+    Object readSlice(int n) throws IOException {
+        int count = fi.width * fi.height;
+        int chunk = RawStackWriter.chunkPixels(fi);
+        long sliceStart = fi.getOffset() + (n - 1) * RawStackWriter.sliceBytes(fi);
+        boolean is16 = getBitDepth() == 16;
+        Object pixels = is16 ? new short[count] : new float[count];
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int from = 0; from < count; from += chunk) {
+                int to = Math.min(count, from + chunk);
+                long position = sliceStart + (long) from * fi.getBytesPerPixel();
+                int length = (to - from) * fi.getBytesPerPixel();
+                ByteBuffer src = IJ.isWindows() ? read(in, position, length)
+                        : in.map(FileChannel.MapMode.READ_ONLY, position, length);
+                src.order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                decode(src, fi.fileType, pixels, from, to);
+            }
+        }
+        return pixels;
+    }
+
+    private static ByteBuffer read(FileChannel in, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (in.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of file");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** PixelKernels.encode（不重标定时）的逆变换 */
+    static void decode(ByteBuffer src, int fileType, Object pixels, int from, int to) throws IOException {
+        int len = to - from;
+        switch (fileType) {
+            case FileInfo.GRAY16_SIGNED: {
+                short[] p = (short[]) pixels;
+                for (int i = from; i < to; i++) p[i] = (short) (src.getShort() + 32768);
+                break;
+            }
+            case FileInfo.GRAY16_UNSIGNED:
+                src.asShortBuffer().get((short[]) pixels, from, len);
+                break;
+            case FileInfo.GRAY32_INT: {
+                float[] p = (float[]) pixels;
+                for (int i = from; i < to; i++) p[i] = src.getInt();
+                break;
+            }
+            case FileInfo.GRAY32_UNSIGNED: {
+                float[] p = (float[]) pixels;
+                for (int i = from; i < to; i++) p[i] = src.getInt() & 0xffffffffL;
+                break;
+            }
+            case FileInfo.GRAY32_FLOAT:
+                src.asFloatBuffer().get((float[]) pixels, from, len);
+                break;
+            case FileInfo.GRAY64_FLOAT: {
+                float[] p = (float[]) pixels;
+                for (int i = from; i < to; i++) p[i] = (float) src.getDouble();
+                break;
+            }
+            default:
+                throw new IOException("Unsupported type");
+        }
+    }
+
+    @Override
+    public int getSize() {
+        return fi.nImages;
+    }
+
+    @Override
+    public int getBitDepth() {
+        return fi.fileType == FileInfo.GRAY16_SIGNED || fi.fileType == FileInfo.GRAY16_UNSIGNED ? 16 : 32;
+    }
+
+    @Override
+    public String getSliceLabel(int n) {
+        return null;
+    }
+
+    /** 修改保留在内存中，不写回文件 */
+    @Override
+    public void setPixels(Object pixels, int n) {
+        if (n < 1 || n > getSize()) throw new IllegalArgumentException("Argument out of range: " + n);
+        if (!(getBitDepth() == 16 ? pixels instanceof short[] : pixels instanceof float[])
+                || Array.getLength(pixels) != fi.width * fi.height)
+            throw new IllegalArgumentException("Pixels do not match the " + getBitDepth() + "-bit stack");
+        synchronized (edited) {
+            edited.put(n, pixels);
+        }
+    }
+
+    @Override
+    public void deleteSlice(int n) {
+        throw new IllegalArgumentException("MappedRawStack is read-only");
+    }
+}
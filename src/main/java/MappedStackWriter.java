@@ -0,0 +1,143 @@
+import ij.IJ;
+import ij.ImageStack;
+import ij.io.FileInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * Writes header + raw slices into a pre-sized file through MappedByteBuffer regions.
+ * The output size is known up front, so every slice is converted straight into its own
+ * offset of the mapping; worker threads fill disjoint regions without any locking or ordering.
+ * Offsets are long and the file is mapped in regions, so outputs larger than 2 GB are fine.
+ * Each region is forced to disk once its slices are done and no reference to it is kept after
+ * write returns, but Java cannot unmap it before it is garbage collected. On Windows a file that
+ * is still mapped can neither be truncated nor deleted, so there an existing target is written
+ * through the channel instead (see RawStackWriter).
+ */
+final class MappedStackWriter implements StackWriter {
+
+    /** 单个映射区域的最大字节数（MappedByteBuffer 受 int 容量限制） */
+    static final long MAX_REGION_BYTES = 1L << 30;
+
+    private final FileInfo fi;
+    private final ImageStack stack;
+    private final ExportRegion region;
+    private final int threads;
+
+    MappedStackWriter(FileInfo fi, ImageStack stack) {
+        this(fi, stack, ExportRegion.of(stack));
+    }
+
+    MappedStackWriter(FileInfo fi, ImageStack stack, ExportRegion region) {
+        this.fi = fi;
+        this.stack = stack;
+        this.region = region;
+        this.threads = Runtime.getRuntime().availableProcessors();
+    }
+
+    @Override
+    public void write(RawHeader header, Path target, IntConsumer progress) throws IOException {
+        if (IJ.isWindows() && Files.exists(target)) {
+            new RawStackWriter(fi, stack, region).write(header, target, progress);
+            return;
+        }
+        int n = fi.width * fi.height;
+        int bpp = fi.getBytesPerPixel();
+        int chunk = RawStackWriter.chunkPixels(fi);
+        long headerLength = fi.getOffset();
+        long sliceBytes = RawStackWriter.sliceBytes(fi);
+        long total = headerLength + sliceBytes * fi.nImages;
+        ByteOrder order = fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ArrayDeque<Future<?>> inFlight = new ArrayDeque<>();
+        ArrayDeque<Integer> sliceEnds = new ArrayDeque<>(); // 分块所属 slice 号，负数表示不是该 slice 的最后一块
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             SlicePrefetcher slices = SlicePrefetcher.forRange(stack, region.firstSlice, region.lastSlice)) {
+            // 预先设定文件大小，再拷贝 header
+            if (total > 0) out.write(ByteBuffer.allocate(1), total - 1);
+            out.position(0);
+            header.copyTo(out);
+
+            MappedByteBuffer mapping = null;
+            long regionStart = 0;
+            for (int s = 0; s < fi.nImages; s++) {
+                Object pixels = slices.next();
+                for (int from = 0; from < n; from += chunk) {
+                    int to = Math.min(n, from + chunk);
+                    long offset = headerLength + s * sliceBytes + (long) from * bpp;
+                    int length = (to - from) * bpp;
+                    // 当前区域放不下时映射新区域（区域不超过 MAX_REGION_BYTES）
+                    if (mapping == null || offset + length > regionStart + mapping.capacity()) {
+                        if (mapping != null) {
+                            // 旧区域的任务全部完成后写回磁盘
+                            while (!inFlight.isEmpty()) awaitHead(inFlight, sliceEnds, progress);
+                            mapping.force();
+                        }
+                        regionStart = offset;
+                        mapping = out.map(FileChannel.MapMode.READ_WRITE, regionStart,
+                                Math.min(MAX_REGION_BYTES, total - regionStart));
+                    }
+                    // 每个任务只写自己的区域
+                    ByteBuffer view = mapping.duplicate();
+                    view.position((int) (offset - regionStart)).limit((int) (offset - regionStart) + length);
+                    ByteBuffer dst = view.slice().order(order);
+                    int first = from;
+                    inFlight.add(pool.submit(() -> {
+                        long t0 = System.nanoTime();
+                        region.encode(pixels, fi, first, to, dst); // 直接写入映射区域，写入时间包含在内
+                        Metrics.recordNanos(Metrics.CONVERT, System.nanoTime() - t0);
+                        return null;
+                    }));
+                    sliceEnds.add(to == n ? s + 1 : -(s + 1));
+                    if (inFlight.size() >= 2 * threads) awaitHead(inFlight, sliceEnds, progress);
+                }
+            }
+            while (!inFlight.isEmpty()) awaitHead(inFlight, sliceEnds, progress);
+            if (mapping != null) mapping.force();
+        } finally {
+            for (Future<?> f : inFlight) f.cancel(true);
+            pool.shutdownNow();
+        }
+    }
+
+    /** 映射区域大小：写回磁盘前其脏页都留在内存中 */
+    @Override
+    public long bufferBytes() {
+        return Math.min(MAX_REGION_BYTES, RawStackWriter.sliceBytes(fi) * fi.nImages);
+    }
+
+    private static void awaitHead(ArrayDeque<Future<?>> inFlight, ArrayDeque<Integer> sliceEnds,
+                                  IntConsumer progress) throws IOException {
+        int mark = sliceEnds.poll();
+        Metrics.QUEUE_DEPTH.record(inFlight.size());
+        await(inFlight.poll(), Math.abs(mark));
+        if (mark > 0) progress.accept(mark);
+    }
+
+    private static void await(Future<?> f, int slice) throws IOException {
+        try {
+            f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting slice " + slice);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Failed to convert slice " + slice + ": " + cause, cause);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+import ij.measure.ResultsTable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Always-on counters and latency histograms for the export and window/level hot paths.
+ * Recording is allocation-free: every histogram is a fixed array of atomic counters with
+ * log-linear buckets (HDR-style, 32 buckets per power of two, i.e. about 3% resolution),
+ * so percentiles can be read at any time without keeping samples.
+ * The values are process-wide; they can be shown as an ImageJ results table or written as JSON.
+ */
+final class Metrics {
+
+    /** 每个 2 的幂区间内的桶数（2^SUB_BITS / 2） */
+    private static final int SUB_BITS = 6;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+    /** 可记录的最大值 2^MAX_BITS - 1，更大的值记入最后一个桶 */
+    private static final int MAX_BITS = 40;
+
+    /** 每块（通常为一个 slice）的像素转换时间 */
+    static final Histogram CONVERT = new Histogram("export.convert", "us");
+    /** 每块写入文件的时间（Memory-mapped 模式下写入包含在转换中） */
+    static final Histogram WRITE = new Histogram("export.write", "us");
+    /** Compressed (gzip) 模式每块的压缩时间 */
+    static final Histogram COMPRESS = new Histogram("export.compress", "us");
+    /** 等待队首块时的在途块数 */
+    static final Histogram QUEUE_DEPTH = new Histogram("export.queueDepth", "blocks");
+    /** 拖动事件到画面绘制完成（取尚未绘制的最早事件） */
+    static final Histogram DRAG_TO_PAINT = new Histogram("wl.dragToPaint", "us");
+    /** 一次窗宽窗位渲染与绘制的时间 */
+    static final Histogram PAINT = new Histogram("wl.paint", "us");
+
+    private static final Histogram[] HISTOGRAMS = {CONVERT, WRITE, COMPRESS, QUEUE_DEPTH, DRAG_TO_PAINT, PAINT};
+
+    private static final LongAdder exports = new LongAdder();
+    private static final LongAdder exportBytes = new LongAdder();
+    private static final LongAdder exportNanos = new LongAdder();
+    private static volatile double lastBytesPerSecond;
+
+    private Metrics() {
+    }
+
+    /**
+     * 计时包装：写出完成后记录字节数与耗时（bytes 为未压缩的 header + 像素字节数；
+     * writer 报告了实际写出的字节数时以其为准，如增量写出）
+     */
+    static StackWriter measured(StackWriter writer, long bytes) {
+        return new StackWriter() {
+            @Override
+            public void write(RawHeader header, Path target, IntConsumer progress) throws IOException {
+                long t0 = System.nanoTime();
+                writer.write(header, target, progress);
+                long written = writer.bytesWritten();
+                exportFinished(written >= 0 ? written : bytes, System.nanoTime() - t0);
+            }
+
+            @Override
+            public long bufferBytes() {
+                return writer.bufferBytes();
+            }
+
+            @Override
+            public long bytesWritten() {
+                return writer.bytesWritten();
+            }
+
+            @Override
+            public boolean keepsPartialOutput() {
+                return writer.keepsPartialOutput();
+            }
+        };
+    }
+
+    static void exportFinished(long bytes, long nanos) {
+        exports.increment();
+        exportBytes.add(bytes);
+        exportNanos.add(nanos);
+        lastBytesPerSecond = nanos > 0 ? bytes * 1e9 / nanos : 0;
+    }
+
+    /** 纳秒 -> 微秒记入 h */
+    static void recordNanos(Histogram h, long nanos) {
+        h.record(nanos / 1000);
+    }
+
+    static void reset() {
+        for (Histogram h : HISTOGRAMS) h.reset();
+        exports.reset();
+        exportBytes.reset();
+        exportNanos.reset();
+        lastBytesPerSecond = 0;
+    }
+
+    /** 每个直方图一行：计数、均值、分位数与最大值；导出吞吐量单独成行 */
+    static ResultsTable table() {
+        ResultsTable rt = new ResultsTable();
+        long bytes = exportBytes.sum(), nanos = exportNanos.sum();
+        rt.incrementCounter();
+        rt.addValue("Metric", "export.throughput");
+        rt.addValue("Unit", "MB/s");
+        rt.addValue("Count", exports.sum());
+        rt.addValue("Mean", nanos > 0 ? bytes * 1e9 / nanos / 1e6 : 0);
+        rt.addValue("Last", lastBytesPerSecond / 1e6);
+        for (Histogram h : HISTOGRAMS) {
+            rt.incrementCounter();
+            rt.addValue("Metric", h.name);
+            rt.addValue("Unit", h.unit);
+            rt.addValue("Count", h.count());
+            rt.addValue("Mean", h.mean());
+            rt.addValue("P50", h.percentile(50));
+            rt.addValue("P90", h.percentile(90));
+            rt.addValue("P99", h.percentile(99));
+            rt.addValue("P99.9", h.percentile(99.9));
+            rt.addValue("Max", h.max());
+        }
+        return rt;
+    }
+
+    static void show() {
+        table().show("Plugin Metrics");
+    }
+
+    static String toJson() {
+        StringBuilder sb = new StringBuilder(1024);
+        long bytes = exportBytes.sum(), nanos = exportNanos.sum();
+        sb.append("{\n  \"timestamp\": ").append(System.currentTimeMillis());
+        sb.append(",\n  \"export\": {\"count\": ").append(exports.sum())
+                .append(", \"bytes\": ").append(bytes)
+                .append(", \"seconds\": ").append(number(nanos / 1e9))
+                .append(", \"bytesPerSecond\": ").append(number(nanos > 0 ? bytes * 1e9 / nanos : 0))
+                .append(", \"lastBytesPerSecond\": ").append(number(lastBytesPerSecond)).append("}");
+        sb.append(",\n  \"histograms\": {");
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            Histogram h = HISTOGRAMS[i];
+            sb.append(i == 0 ? "\n" : ",\n").append("    \"").append(h.name).append("\": {")
+                    .append("\"unit\": \"").append(h.unit)
+                    .append("\", \"count\": ").append(h.count())
+                    .append(", \"mean\": ").append(number(h.mean()))
+                    .append(", \"p50\": ").append(h.percentile(50))
+                    .append(", \"p90\": ").append(h.percentile(90))
+                    .append(", \"p99\": ").append(h.percentile(99))
+                    .append(", \"p999\": ").append(h.percentile(99.9))
+                    .append(", \"max\": ").append(h.max()).append("}");
+        }
+        return sb.append("\n  }\n}\n").toString();
+    }
+
+    static void writeJson(Path target) throws IOException {
+        Files.write(target, toJson().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String number(double v) {
+        return String.format(Locale.ROOT, "%.3f", v);
+    }
+
+    /** 对数-线性分桶的直方图，记录时不分配内存，可多线程并发记录 */
+    static final class Histogram {
+        final String name, unit;
+        private final AtomicLongArray buckets = new AtomicLongArray(index((1L << MAX_BITS) - 1) + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(Math.min(buckets.length() - 1, index(value)));
+            count.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        /** 0..2^SUB_BITS-1 一值一桶；之后每个 2 的幂区间 HALF 个桶 */
+        static int index(long value) {
+            int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1));
+            return shift * HALF + (int) (value >>> shift);
+        }
+
+        /** 桶的上界（含），分位数按桶上界报告 */
+        static long highestValue(int index) {
+            if (index < 2 * HALF) return index;
+            int shift = index / HALF - 1;
+            return ((long) (index - shift * HALF + 1) << shift) - 1;
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double mean() {
+            long n = count.sum();
+            return n > 0 ? (double) sum.sum() / n : 0;
+        }
+
+        long max() {
+            return max.get();
+        }
+
+        /** 第 p 百分位（0..100），不超过已记录的最大值 */
+        long percentile(double p) {
+            long n = count.sum();
+            if (n == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(p / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) return Math.min(highestValue(i), max.get());
+            }
+            return max.get();
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) buckets.set(i, 0);
+            count.reset();
+            sum.reset();
+            max.set(0);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.GenericDialog;
+import ij.io.FileInfo;
+import ij.io.OpenDialog;
+import ij.plugin.PlugIn;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Open a header + raw file as a memory-mapped virtual stack (counterpart of SaveWithHeader_).
+ * A copy of the header is kept as the "RawHeader" image property, so a later "Save with Header"
+ * reuses it without choosing or reading the source file again, even if the file changes meanwhile.
+ */
+public final class OpenWithHeader_ implements PlugIn {
+
+    private static long lastHeaderLength = 1024;
+    private static int lastWidth = 512, lastHeight = 512;
+    private static String lastType = "16-bit signed";
+    private static boolean lastLittleEndian = true;
+
+    @Override
+    public void run(String arg) {
+        OpenDialog od = new OpenDialog("Open Raw with Header");
+        String path = od.getPath();
+        if (path == null) return;
+        File file = new File(path);
+
+        // 1. 输入参数
+        GenericDialog gd = new GenericDialog("Open Raw with Header");
+        gd.addNumericField("Header length (bytes):", lastHeaderLength, 0);
+        gd.addChoice("Image Data Type:", SaveWithHeader_.types, lastType);
+        gd.addNumericField("Width:", lastWidth, 0);
+        gd.addNumericField("Height:", lastHeight, 0);
+        gd.addNumericField("Number of images (0 = fill file):", 0, 0);
+        gd.addCheckbox("Little-endian byte order", lastLittleEndian);
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+
+        long headerLength = (long) gd.getNextNumber();
+        String typeChoice = gd.getNextChoice();
+        int width = (int) gd.getNextNumber();
+        int height = (int) gd.getNextNumber();
+        int nImages = (int) gd.getNextNumber();
+        boolean littleEndian = gd.getNextBoolean();
+
+        // 2. 构建 FileInfo
+        FileInfo fi = new FileInfo();
+        fi.fileFormat = FileInfo.RAW;
+        fi.fileType = SaveWithHeader_.fileTypeOf(typeChoice);
+        fi.fileName = file.getName();
+        fi.directory = file.getParent() + File.separator;
+        fi.width = width;
+        fi.height = height;
+        fi.longOffset = headerLength;
+        fi.intelByteOrder = littleEndian;
+        if (fi.fileType < 0 || width <= 0 || height <= 0 || headerLength < 0) {
+            IJ.error("Open Raw with Header", "Invalid parameters");
+            return;
+        }
+
+        // 3. 检查文件大小
+        long sliceBytes = RawStackWriter.sliceBytes(fi);
+        long available = (file.length() - headerLength) / sliceBytes;
+        if (nImages <= 0) nImages = (int) Math.min(Integer.MAX_VALUE, available);
+        if (nImages <= 0 || nImages > available) {
+            IJ.error("Open Raw with Header", "File is too small: " + available + " images of "
+                    + width + "x" + height + " after a " + headerLength + " byte header");
+            return;
+        }
+        fi.nImages = nImages;
+
+        lastHeaderLength = headerLength;
+        lastType = typeChoice;
+        lastWidth = width;
+        lastHeight = height;
+        lastLittleEndian = littleEndian;
+
+        // 4. 复制 header，slice 在显示时才映射并解码
+        try {
+            RawHeader header = readHeader(file, headerLength);
+            ImagePlus imp = new ImagePlus(file.getName(), new MappedRawStack(fi));
+            if (fi.fileType == FileInfo.GRAY16_SIGNED) imp.getCalibration().setSigned16BitCalibration();
+            imp.setFileInfo(fi);
+            imp.setProperty(RawHeader.PROPERTY, header);
+            imp.show();
+        } catch (Exception e) {
+            IJ.error("Open Raw with Header", "Failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * 把 header 读入内存（快照，之后文件被修改也不影响）；超过 HeaderIndex.MAX_CACHED_BYTES 时
+     * 不常驻内存，保存时再从文件读取。
+     */
+    static RawHeader readHeader(File file, long headerLength) throws IOException {
+        if (headerLength > HeaderIndex.MAX_CACHED_BYTES) return RawHeader.ofFile(file, headerLength);
+        ByteBuffer bytes = ByteBuffer.allocate((int) headerLength);
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (bytes.hasRemaining()) {
+                if (in.read(bytes, bytes.position()) < 0) throw new IOException("File is smaller than the header");
+            }
+        }
+        bytes.flip();
+        return RawHeader.ofBuffer(file, bytes);
+    }
+}
@@ -0,0 +1,146 @@
+import ij.ImageStack;
+import ij.io.FileInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Producer/consumer variant of RawStackWriter.
+ * Slices are converted in parallel on a ForkJoinPool into direct buffers taken from
+ * ChunkBufferPool (and returned there afterwards), while the calling thread drains them to the
+ * file strictly in slice order. Slices larger than
+ * RawStackWriter.MAX_CHUNK_BYTES are split into chunks; at most {@code depth} chunks are
+ * in flight, so memory stays fixed regardless of the stack size.
+ */
+final class ParallelStackWriter implements StackWriter {
+
+    /** 所有在途缓冲区合计的上限 */
+    static final long MAX_IN_FLIGHT_BYTES = 256L << 20;
+
+    private final FileInfo fi;
+    private final ImageStack stack;
+    private final ExportRegion region;
+    private final int threads;
+
+    ParallelStackWriter(FileInfo fi, ImageStack stack) {
+        this(fi, stack, Runtime.getRuntime().availableProcessors());
+    }
+
+    ParallelStackWriter(FileInfo fi, ImageStack stack, int threads) {
+        this(fi, stack, ExportRegion.of(stack), threads);
+    }
+
+    ParallelStackWriter(FileInfo fi, ImageStack stack, ExportRegion region) {
+        this(fi, stack, region, Runtime.getRuntime().availableProcessors());
+    }
+
+    ParallelStackWriter(FileInfo fi, ImageStack stack, ExportRegion region, int threads) {
+        this.fi = fi;
+        this.stack = stack;
+        this.region = region;
+        this.threads = Math.max(1, threads);
+    }
+
+    /** 在途分块数：每个线程两个缓冲区，但受 MAX_IN_FLIGHT_BYTES 限制，至少为 2 */
+    int depth() {
+        long chunkBytes = (long) RawStackWriter.chunkPixels(fi) * fi.getBytesPerPixel();
+        long byMemory = MAX_IN_FLIGHT_BYTES / chunkBytes;
+        return (int) Math.max(2, Math.min(2L * threads, byMemory));
+    }
+
+    @Override
+    public long bufferBytes() {
+        return depth() * (long) RawStackWriter.chunkPixels(fi) * fi.getBytesPerPixel();
+    }
+
+    @Override
+    public void write(RawHeader header, Path target, IntConsumer progress) throws IOException {
+        int depth = depth();
+        int n = fi.width * fi.height;
+        int chunk = RawStackWriter.chunkPixels(fi);
+        int chunksPerSlice = (n + chunk - 1) / chunk;
+        long total = (long) chunksPerSlice * fi.nImages;
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ArrayDeque<ByteBuffer> free = new ArrayDeque<>(depth);
+        List<ByteBuffer> allocated = new ArrayList<>(depth);
+        ArrayDeque<Future<ByteBuffer>> inFlight = new ArrayDeque<>(depth);
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             SlicePrefetcher slices = SlicePrefetcher.forRange(stack, region.firstSlice, region.lastSlice)) {
+            header.copyTo(out);
+
+            Object pixels = null;
+            long submitted = 0;
+            for (long written = 0; written < total; ) {
+                // 填满窗口：缓冲区按需分配，总数不超过 depth
+                while (inFlight.size() < depth && submitted < total) {
+                    int k = (int) (submitted % chunksPerSlice);
+                    if (k == 0) pixels = slices.next();
+                    ByteBuffer buffer = free.poll();
+                    if (buffer == null) {
+                        buffer = ChunkBufferPool.take(fi);
+                        allocated.add(buffer);
+                    }
+                    Object src = pixels;
+                    ByteBuffer dst = buffer;
+                    int from = k * chunk;
+                    inFlight.add(pool.submit(() -> {
+                        long t0 = System.nanoTime();
+                        region.encode(src, fi, from, Math.min(n, from + chunk), dst);
+                        Metrics.recordNanos(Metrics.CONVERT, System.nanoTime() - t0);
+                        return dst;
+                    }));
+                    submitted++;
+                }
+                // 按顺序写出队首
+                int slice = (int) (written / chunksPerSlice) + 1;
+                Metrics.QUEUE_DEPTH.record(inFlight.size());
+                ByteBuffer done = await(inFlight.poll(), slice);
+                long t0 = System.nanoTime();
+                RawStackWriter.writeFully(out, done);
+                Metrics.recordNanos(Metrics.WRITE, System.nanoTime() - t0);
+                free.add(done);
+                if (++written % chunksPerSlice == 0) progress.accept(slice);
+            }
+        } finally {
+            for (Future<ByteBuffer> f : inFlight) f.cancel(true);
+            pool.shutdownNow();
+            // 等正在转换的任务结束后再归还所有缓冲区；等待失败时只归还空闲的
+            boolean idle = awaitTermination(pool);
+            for (ByteBuffer b : idle ? allocated : free) ChunkBufferPool.release(b);
+        }
+    }
+
+    private static boolean awaitTermination(ForkJoinPool pool) {
+        try {
+            return pool.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static ByteBuffer await(Future<ByteBuffer> f, int slice) throws IOException {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while converting slice " + slice);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException("Failed to convert slice " + slice + ": " + cause, cause);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Single-pass conversion of slice pixels to the output type while they are encoded.
+ * Each value is mapped as value * slope + intercept, rounded (half up) and saturated to the
+ * range of integer targets. The work is done in small blocks: a tight loop over primitive
+ * arrays (which the JIT can vectorize) followed by one bulk put into the output buffer.
+ * <p>
+ * Without rescale the legacy behaviour is kept: 16-bit images written as "16-bit signed"
+ * store value - 32768, every other combination converts the value unchanged.
+ */
+final class PixelKernels {
+
+    /** 每个块的像素数，块数组保持在 L1/L2 缓存内 */
+    static final int BLOCK = 8192;
+
+    private PixelKernels() {
+    }
+
+    /** 每个线程复用的块数组，跨行、跨 slice 使用 */
+    private static final ThreadLocal<Blocks> BLOCKS = ThreadLocal.withInitial(Blocks::new);
+
+    /**
+     * 将 pixels[from, to) 转换为 fi.fileType 写入 dst（清空后填充，返回时已 flip）。
+     * fi.calibrationFunction 为 STRAIGHT_LINE 时按 fi.coefficients = {intercept, slope} 重标定。
+     */
+    static void encode(Object pixels, FileInfo fi, int from, int to, ByteBuffer dst) throws IOException {
+        dst.clear();
+        Buffer out = view(pixels, fi, dst);
+        double[] rescale = rescale(pixels, fi);
+        convert(pixels, fi, rescale[0], rescale[1], from, to, out, BLOCKS.get());
+        dst.position(out.position() * fi.getBytesPerPixel());
+        dst.flip();
+    }
+
+    /**
+     * 子区域版本：from/to 为 roi 内按行排列的像素序号，pixels 的行宽为 width。
+     * 每行直接从原 slice 数组收集到 dst，不生成裁剪后的中间数组；输出视图与块数组在各行间复用。
+     */
+    static void encode(Object pixels, int width, Rectangle roi, FileInfo fi, int from, int to, ByteBuffer dst)
+            throws IOException {
+        if (roi.x == 0 && roi.width == width) { // 整行连续
+            int start = roi.y * width;
+            encode(pixels, fi, start + from, start + to, dst);
+            return;
+        }
+        dst.clear();
+        Buffer out = view(pixels, fi, dst);
+        double[] rescale = rescale(pixels, fi);
+        Blocks blocks = BLOCKS.get();
+        for (int i = from; i < to; ) {
+            int row = i / roi.width, col = i % roi.width;
+            int len = Math.min(to - i, roi.width - col);
+            int start = (roi.y + row) * width + roi.x + col;
+            convert(pixels, fi, rescale[0], rescale[1], start, start + len, out, blocks);
+            i += len;
+        }
+        dst.position(out.position() * fi.getBytesPerPixel());
+        dst.flip();
+    }
+
+    /** dst 上对应 fi.fileType 的输出视图（从 dst 的当前位置开始） */
+    private static Buffer view(Object pixels, FileInfo fi, ByteBuffer dst) throws IOException {
+        if (!(pixels instanceof byte[] || pixels instanceof short[] || pixels instanceof float[]))
+            throw new IOException("RGB images are not supported");
+        switch (fi.fileType) {
+            case FileInfo.GRAY16_SIGNED:
+            case FileInfo.GRAY16_UNSIGNED:
+                return dst.asShortBuffer();
+            case FileInfo.GRAY32_INT:
+            case FileInfo.GRAY32_UNSIGNED:
+                return dst.asIntBuffer();
+            case FileInfo.GRAY32_FLOAT:
+                return dst.asFloatBuffer();
+            case FileInfo.GRAY64_FLOAT:
+                return dst.asDoubleBuffer();
+            default:
+                throw new IOException("Unsupported type");
+        }
+    }
+
+    /** {slope, intercept} */
+    private static double[] rescale(Object pixels, FileInfo fi) {
+        if (fi.calibrationFunction == Calibration.STRAIGHT_LINE && fi.coefficients != null && fi.coefficients.length >= 2)
+            return new double[]{fi.coefficients[1], fi.coefficients[0]};
+        if (fi.fileType == FileInfo.GRAY16_SIGNED && pixels instanceof short[])
+            return new double[]{1, -32768};
+        return new double[]{1, 0};
+    }
+
+    /** 转换 pixels[from, to) 并追加到 out（view 返回的视图）的当前位置 */
+    private static void convert(Object pixels, FileInfo fi, double slope, double intercept, int from, int to,
+                                Buffer out, Blocks blocks) {
+        switch (fi.fileType) {
+            case FileInfo.GRAY16_SIGNED:
+                toShorts(pixels, from, to, slope, intercept, Short.MIN_VALUE, Short.MAX_VALUE, (ShortBuffer) out, blocks.shorts());
+                break;
+            case FileInfo.GRAY16_UNSIGNED:
+                toShorts(pixels, from, to, slope, intercept, 0, 65535, (ShortBuffer) out, blocks.shorts());
+                break;
+            case FileInfo.GRAY32_INT:
+                toInts(pixels, from, to, slope, intercept, Integer.MIN_VALUE, Integer.MAX_VALUE, (IntBuffer) out, blocks.ints());
+                break;
+            case FileInfo.GRAY32_UNSIGNED:
+                toInts(pixels, from, to, slope, intercept, 0, 0xffffffffL, (IntBuffer) out, blocks.ints());
+                break;
+            case FileInfo.GRAY32_FLOAT:
+                toFloats(pixels, from, to, slope, intercept, (FloatBuffer) out, blocks.floats());
+                break;
+            default:
+                toDoubles(pixels, from, to, slope, intercept, (DoubleBuffer) out, blocks.doubles());
+        }
+    }
+
+    /** 各输出类型的块数组，首次使用时分配（每个 BLOCK 个元素） */
+    private static final class Blocks {
+        private short[] shorts;
+        private int[] ints;
+        private float[] floats;
+        private double[] doubles;
+
+        short[] shorts() {
+            if (shorts == null) shorts = new short[BLOCK];
+            return shorts;
+        }
+
+        int[] ints() {
+            if (ints == null) ints = new int[BLOCK];
+            return ints;
+        }
+
+        float[] floats() {
+            if (floats == null) floats = new float[BLOCK];
+            return floats;
+        }
+
+        double[] doubles() {
+            if (doubles == null) doubles = new double[BLOCK];
+            return doubles;
+        }
+    }
+
+    /** 整数源且 slope = 1、intercept 为小整数时走纯整数路径 */
+    private static boolean integral(Object pixels, double slope, double intercept) {
+        return !(pixels instanceof float[]) && slope == 1 && intercept == Math.rint(intercept)
+                && Math.abs(intercept) <= (1 << 30);
+    }
+
+    static void toShorts(Object pixels, int from, int to, double slope, double intercept,
+                         int lo, int hi, ShortBuffer out, short[] block) {
+        boolean integral = integral(pixels, slope, intercept);
+        int offset = (int) intercept;
+        if (integral && offset == 0 && lo == 0 && pixels instanceof short[]) {
+            out.put((short[]) pixels, from, to - from); // uint16 原样写出
+            return;
+        }
+        for (int start = from; start < to; start += BLOCK) {
+            int n = Math.min(BLOCK, to - start);
+            if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                if (integral) for (int i = 0; i < n; i++) block[i] = (short) clamp((p[start + i] & 0xffff) + offset, lo, hi);
+                else for (int i = 0; i < n; i++) block[i] = (short) saturate((p[start + i] & 0xffff) * slope + intercept, lo, hi);
+            } else if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                if (integral) for (int i = 0; i < n; i++) block[i] = (short) clamp((p[start + i] & 0xff) + offset, lo, hi);
+                else for (int i = 0; i < n; i++) block[i] = (short) saturate((p[start + i] & 0xff) * slope + intercept, lo, hi);
+            } else {
+                float[] p = (float[]) pixels;
+                for (int i = 0; i < n; i++) block[i] = (short) saturate(p[start + i] * slope + intercept, lo, hi);
+            }
+            out.put(block, 0, n);
+        }
+    }
+
+    static void toInts(Object pixels, int from, int to, double slope, double intercept,
+                       long lo, long hi, IntBuffer out, int[] block) {
+        boolean integral = integral(pixels, slope, intercept);
+        long offset = (long) intercept;
+        for (int start = from; start < to; start += BLOCK) {
+            int n = Math.min(BLOCK, to - start);
+            if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                if (integral) for (int i = 0; i < n; i++) block[i] = (int) clamp((p[start + i] & 0xffff) + offset, lo, hi);
+                else for (int i = 0; i < n; i++) block[i] = (int) saturate((p[start + i] & 0xffff) * slope + intercept, lo, hi);
+            } else if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                if (integral) for (int i = 0; i < n; i++) block[i] = (int) clamp((p[start + i] & 0xff) + offset, lo, hi);
+                else for (int i = 0; i < n; i++) block[i] = (int) saturate((p[start + i] & 0xff) * slope + intercept, lo, hi);
+            } else {
+                float[] p = (float[]) pixels;
+                for (int i = 0; i < n; i++) block[i] = (int) saturate(p[start + i] * slope + intercept, lo, hi);
+            }
+            out.put(block, 0, n);
+        }
+    }
+
+    static void toFloats(Object pixels, int from, int to, double slope, double intercept, FloatBuffer out,
+                         float[] block) {
+        if (pixels instanceof float[] && slope == 1 && intercept == 0) {
+            out.put((float[]) pixels, from, to - from);
+            return;
+        }
+        for (int start = from; start < to; start += BLOCK) {
+            int n = Math.min(BLOCK, to - start);
+            if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int i = 0; i < n; i++) block[i] = (float) ((p[start + i] & 0xffff) * slope + intercept);
+            } else if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                for (int i = 0; i < n; i++) block[i] = (float) ((p[start + i] & 0xff) * slope + intercept);
+            } else {
+                float[] p = (float[]) pixels;
+                for (int i = 0; i < n; i++) block[i] = (float) (p[start + i] * slope + intercept);
+            }
+            out.put(block, 0, n);
+        }
+    }
+
+    static void toDoubles(Object pixels, int from, int to, double slope, double intercept, DoubleBuffer out,
+                          double[] block) {
+        for (int start = from; start < to; start += BLOCK) {
+            int n = Math.min(BLOCK, to - start);
+            if (pixels instanceof short[]) {
+                short[] p = (short[]) pixels;
+                for (int i = 0; i < n; i++) block[i] = (p[start + i] & 0xffff) * slope + intercept;
+            } else if (pixels instanceof byte[]) {
+                byte[] p = (byte[]) pixels;
+                for (int i = 0; i < n; i++) block[i] = (p[start + i] & 0xff) * slope + intercept;
+            } else {
+                float[] p = (float[]) pixels;
+                for (int i = 0; i < n; i++) block[i] = p[start + i] * slope + intercept;
+            }
+            out.put(block, 0, n);
+        }
+    }
+
+    private static long clamp(long v, long lo, long hi) {
+        return v < lo ? lo : (v > hi ? hi : v);
+    }
+
+    /** 四舍五入并饱和到 [lo, hi]，NaN 写为 0（或最接近 0 的可表示值） */
+    static long saturate(double v, long lo, long hi) {
+        if (v != v) return clamp(0, lo, hi);
+        double r = Math.floor(v + 0.5);
+        return r <= lo ? lo : (r >= hi ? hi : (long) r);
+    }
+}
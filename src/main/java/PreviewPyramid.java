@@ -0,0 +1,92 @@
+import ij.ImagePlus;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Downsampled copies of 16-bit slices used while dragging.
+ * For each image one level (1/FACTOR resolution, FACTOR x FACTOR block means) of the current slice
+ * is built once on a background thread; until it is ready the caller renders full resolution.
+ * A level is only valid for the pixel array it was built from, so slice changes and pixel edits
+ * that replace the array trigger a rebuild.
+ */
+final class PreviewPyramid {
+
+    static final int FACTOR = 4;
+    /** 可见像素达到此值才使用低分辨率预览 */
+    static final int PREVIEW_PIXELS = 1 << 20;
+
+    /** 一层降采样数据 */
+    static final class Level {
+        final int width, height;
+        final short[] pixels;
+        final WeakReference<Object> source;
+
+        Level(int width, int height, short[] pixels, Object source) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            this.source = new WeakReference<>(source);
+        }
+    }
+
+    private final Map<ImagePlus, Level> levels = new WeakHashMap<>();
+    private final Map<ImagePlus, Object> building = new WeakHashMap<>();
+    private final ExecutorService executor;
+
+    /** executor：构建降采样层的后台线程 */
+    PreviewPyramid(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /** 返回 imp 当前 slice 已就绪的降采样层；未就绪时在后台构建并返回 null */
+    synchronized Level get(ImagePlus imp) {
+        Object pixels = imp.getProcessor().getPixels();
+        Level level = levels.get(imp);
+        if (level != null && level.source.get() == pixels) return level;
+        request(imp);
+        return null;
+    }
+
+    /** 大图像在后台为当前 slice 构建降采样层（已有或正在构建时忽略） */
+    synchronized void request(ImagePlus imp) {
+        if (imp.getBitDepth() != 16 || (long) imp.getWidth() * imp.getHeight() < PREVIEW_PIXELS) return;
+        Object pixels = imp.getProcessor().getPixels();
+        if (!(pixels instanceof short[]) || building.get(imp) == pixels) return;
+        Level level = levels.get(imp);
+        if (level != null && level.source.get() == pixels) return;
+        building.put(imp, pixels);
+        int width = imp.getWidth(), height = imp.getHeight();
+        executor.execute(() -> {
+            Level built = downsample((short[]) pixels, width, height);
+            synchronized (this) {
+                if (building.get(imp) == pixels) building.remove(imp);
+                levels.put(imp, built);
+            }
+        });
+    }
+
+    /** FACTOR x FACTOR 块均值；右侧与底部不足一块的部分按实际像素数平均 */
+    static Level downsample(short[] pixels, int width, int height) {
+        int w = (width + FACTOR - 1) / FACTOR, h = (height + FACTOR - 1) / FACTOR;
+        short[] out = new short[w * h];
+        int[] sums = new int[w];
+        for (int y = 0; y < h; y++) {
+            Arrays.fill(sums, 0);
+            int y0 = y * FACTOR, y1 = Math.min(height, y0 + FACTOR);
+            for (int yy = y0; yy < y1; yy++) {
+                int row = yy * width;
+                for (int x = 0; x < width; x++) sums[x / FACTOR] += pixels[row + x] & 0xffff;
+            }
+            int rows = y1 - y0;
+            for (int x = 0; x < w; x++) {
+                int cols = Math.min(width, (x + 1) * FACTOR) - x * FACTOR;
+                out[y * w + x] = (short) (sums[x] / (rows * cols));
+            }
+        }
+        return new Level(w, h, out, pixels);
+    }
+}
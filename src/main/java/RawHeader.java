@@ -0,0 +1,73 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The header bytes that are written in front of the raw slices.
+ * Either the first {@code length} bytes of a source file (copied channel-to-channel), a cached
+ * copy of them, or a buffer that is already in memory, e.g. the copy kept by OpenWithHeader_.
+ */
+final class RawHeader {
+
+    /** ImagePlus 属性名：OpenWithHeader_ 打开的图像在此保存其 RawHeader */
+    static final String PROPERTY = "RawHeader";
+
+    private final File source;
+    private final File data;
+    private final long length;
+    private final ByteBuffer bytes;
+
+    private RawHeader(File source, File data, long length, ByteBuffer bytes) {
+        this.source = source;
+        this.data = data;
+        this.length = length;
+        this.bytes = bytes;
+    }
+
+    /** The first length bytes of source, read when the header is written. */
+    static RawHeader ofFile(File source, long length) {
+        return new RawHeader(source, source, length, null);
+    }
+
+    /** A copy of the header of source kept in another file (see HeaderIndex). */
+    static RawHeader ofCopy(File source, File copy, long length) {
+        return new RawHeader(source, copy, length, null);
+    }
+
+    /** Header bytes already in memory; source is only used for display and path checks. */
+    static RawHeader ofBuffer(File source, ByteBuffer bytes) {
+        return new RawHeader(source, null, bytes.remaining(), bytes.asReadOnlyBuffer());
+    }
+
+    File source() {
+        return source;
+    }
+
+    long length() {
+        return length;
+    }
+
+    /** Writes the header at the current position of out. */
+    void copyTo(WritableByteChannel out) throws IOException {
+        if (bytes != null) {
+            RawStackWriter.writeFully(out, bytes.duplicate());
+            return;
+        }
+        try (FileChannel in = FileChannel.open(data.toPath(), StandardOpenOption.READ)) {
+            long copied = 0;
+            while (copied < length) {
+                long n = in.transferTo(copied, length - copied, out);
+                if (n <= 0) throw new IOException("Header file is smaller than header length!");
+                copied += n;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return length + " bytes from " + (source != null ? source.getName() : "memory");
+    }
+}
@@ -0,0 +1,90 @@
+import ij.ImageStack;
+import ij.io.FileInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.IntConsumer;
+
+/**
+ * Streams header + raw slices to a file through a FileChannel.
+ * The header is copied channel-to-channel from the source file (see RawHeader), then every slice is
+ * converted (see PixelKernels) into one reusable direct buffer and written, so the extra memory is one slice
+ * (at most MAX_CHUNK_BYTES). All file offsets are long, so headers and volumes beyond 2 GB work.
+ * Virtual stacks are read lazily with a small read-ahead window (see SlicePrefetcher).
+ */
+final class RawStackWriter implements StackWriter {
+
+    /** 单个编码缓冲区的最大字节数；超过此大小的 slice 分块写入 */
+    static final int MAX_CHUNK_BYTES = 64 << 20;
+
+    private final FileInfo fi;
+    private final ImageStack stack;
+    private final ExportRegion region;
+
+    RawStackWriter(FileInfo fi, ImageStack stack) {
+        this(fi, stack, ExportRegion.of(stack));
+    }
+
+    /** 只写出 stack 的 region 部分；fi 的尺寸与 nImages 须与 region 一致 */
+    RawStackWriter(FileInfo fi, ImageStack stack, ExportRegion region) {
+        this.fi = fi;
+        this.stack = stack;
+        this.region = region;
+    }
+
+    /** Writes the header, then the slices in order on the calling thread. */
+    @Override
+    public void write(RawHeader header, Path target, IntConsumer progress) throws IOException {
+        int n = fi.width * fi.height;
+        int chunk = chunkPixels(fi);
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE,
+                     StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             SlicePrefetcher slices = SlicePrefetcher.forRange(stack, region.firstSlice, region.lastSlice)) {
+            header.copyTo(out);
+
+            ByteBuffer buffer = allocateChunkBuffer(fi);
+            for (int s = 0; s < fi.nImages; s++) {
+                Object pixels = slices.next();
+                for (int from = 0; from < n; from += chunk) {
+                    long t0 = System.nanoTime();
+                    region.encode(pixels, fi, from, Math.min(n, from + chunk), buffer);
+                    long t1 = System.nanoTime();
+                    writeFully(out, buffer);
+                    Metrics.recordNanos(Metrics.CONVERT, t1 - t0);
+                    Metrics.recordNanos(Metrics.WRITE, System.nanoTime() - t1);
+                }
+                progress.accept(s + 1);
+            }
+        }
+    }
+
+    @Override
+    public long bufferBytes() {
+        return (long) chunkPixels(fi) * fi.getBytesPerPixel();
+    }
+
+    /** 每个 slice 在文件中所占的字节数（long，避免 width*height*8 溢出） */
+    static long sliceBytes(FileInfo fi) {
+        return (long) fi.width * fi.height * fi.getBytesPerPixel();
+    }
+
+    /** 一次编码的像素数：整个 slice，但缓冲区不超过 MAX_CHUNK_BYTES */
+    static int chunkPixels(FileInfo fi) {
+        int n = fi.width * fi.height;
+        return Math.max(1, Math.min(n, MAX_CHUNK_BYTES / fi.getBytesPerPixel()));
+    }
+
+    static ByteBuffer allocateChunkBuffer(FileInfo fi) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(chunkPixels(fi) * fi.getBytesPerPixel());
+        return buffer.order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    }
+
+    static void writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) out.write(buffer);
+    }
+}
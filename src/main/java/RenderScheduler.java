@@ -0,0 +1,51 @@
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces display updates to at most one per frame.
+ * Input handlers only register the latest render for a key (usually the ImagePlus); a one-shot
+ * Swing timer runs whatever is pending once per FRAME_MS, so intermediate states that were
+ * superseded before the frame are dropped. All methods are called on the event dispatch thread.
+ */
+final class RenderScheduler {
+
+    /** 约 60 Hz */
+    static final int FRAME_MS = 16;
+
+    private final Map<Object, Runnable> pending = new LinkedHashMap<>();
+    private final Timer timer;
+
+    RenderScheduler() {
+        timer = new Timer(FRAME_MS, e -> flush());
+        timer.setRepeats(false);
+    }
+
+    /** 登记 key 的最新渲染，替换尚未执行的旧请求 */
+    void schedule(Object key, Runnable render) {
+        pending.put(key, render);
+        if (!timer.isRunning()) timer.start();
+    }
+
+    /** 立即执行所有待处理的渲染（如鼠标释放时） */
+    void flush() {
+        timer.stop();
+        if (pending.isEmpty()) return;
+        List<Runnable> batch = new ArrayList<>(pending.values());
+        pending.clear();
+        for (Runnable render : batch) render.run();
+    }
+
+    /** 丢弃 key 尚未执行的渲染 */
+    void cancel(Object key) {
+        pending.remove(key);
+    }
+
+    /** 丢弃所有尚未执行的渲染 */
+    void cancelAll() {
+        timer.stop();
+        pending.clear();
+    }
+}
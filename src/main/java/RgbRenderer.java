@@ -0,0 +1,103 @@
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Window/level path for RGB images.
+ * ColorProcessor.setMinAndMax restores the snapshot and re-maps all three channels on every call.
+ * Here the original packed pixels of the displayed slice are copied once, and each change maps them
+ * through per-channel 256-entry LUTs (pre-shifted into their channel's byte of the packed value),
+ * in parallel row bands, straight into the processor's own pixel array. ImageJ's display image
+ * wraps that array, so a repaint is all that is needed afterwards.
+ * The current range is kept here, since the processor's min/max are not updated.
+ */
+final class RgbRenderer {
+
+    /** 像素少于此值时单线程映射 */
+    static final int PARALLEL_PIXELS = LutRenderer.PARALLEL_PIXELS;
+
+    private static final class State {
+        final int[] target;
+        final int[] original;
+        double min = 0, max = 255;
+
+        State(int[] target) {
+            this.target = target;
+            this.original = target.clone();
+        }
+    }
+
+    private final Map<ImagePlus, State> states = new WeakHashMap<>();
+    private final int[] red = new int[256], green = new int[256], blue = new int[256];
+
+    /** 当前 slice 的显示范围 {min, max}；尚未调整过时为 {0, 255} */
+    double[] range(ImagePlus imp) {
+        State s = state(imp);
+        return s != null ? new double[]{s.min, s.max} : new double[]{0, 255};
+    }
+
+    /** 将原始像素按 [min, max] 映射到显示像素（各通道相同）；非 RGB 时返回 false */
+    boolean apply(ImagePlus imp, double min, double max) {
+        State s = state(imp);
+        if (s == null || max < min) return false;
+        s.min = min;
+        s.max = max;
+        build(blue, min, max);
+        for (int v = 0; v < 256; v++) {
+            green[v] = blue[v] << 8;
+            red[v] = blue[v] << 16;
+        }
+        map(s.original, s.target, red, green, blue);
+        return true;
+    }
+
+    /** 恢复原始像素 */
+    void reset(ImagePlus imp) {
+        State s = state(imp);
+        if (s == null) return;
+        System.arraycopy(s.original, 0, s.target, 0, s.target.length);
+        states.remove(imp);
+    }
+
+    /** 当前 slice 的状态；slice 切换（像素数组变化）后重新保存原始像素 */
+    private State state(ImagePlus imp) {
+        if (imp.getType() != ImagePlus.COLOR_RGB) return null;
+        ImageProcessor ip = imp.getProcessor();
+        int[] pixels = (int[]) ip.getPixels();
+        State s = states.get(imp);
+        if (s == null || s.target != pixels) {
+            s = new State(pixels);
+            states.put(imp, s);
+        }
+        return s;
+    }
+
+    /** 与 ColorProcessor.setMinAndMax 相同：256 * (v - (int) min) / (max - min)，截断到 0..255 */
+    static void build(int[] lut, double min, double max) {
+        int lo = (int) min;
+        for (int v = 0; v < 256; v++) {
+            int value = (int) (256.0 * (v - lo) / (max - min));
+            if (value < 0) value = 0;
+            if (value > 255) value = 255;
+            lut[v] = value;
+        }
+    }
+
+    /** src 经各通道 LUT（r、g 已移位到所在字节）映射到 dst，保留 alpha 字节；大图按行带并行 */
+    static void map(int[] src, int[] dst, int[] r, int[] g, int[] b) {
+        int n = src.length;
+        int bands = n < PARALLEL_PIXELS ? 1 : 4 * Runtime.getRuntime().availableProcessors();
+        int perBand = (n + bands - 1) / bands;
+        IntStream range = IntStream.range(0, bands);
+        (bands > 1 ? range.parallel() : range).forEach(k -> {
+            int end = Math.min(n, (k + 1) * perBand);
+            for (int i = k * perBand; i < end; i++) {
+                int c = src[i];
+                dst[i] = (c & 0xff000000) | r[(c >> 16) & 0xff] | g[(c >> 8) & 0xff] | b[c & 0xff];
+            }
+        });
+    }
+}
@@ -1,24 +1,24 @@
 import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.gui.GenericDialog;
 import ij.gui.Toolbar;
 import ij.plugin.tool.PlugInTool;
 import ij.io.FileInfo;
-import ij.io.ImageWriter;
+import ij.measure.Calibration;
 
 import java.awt.MenuItem;
 import java.awt.PopupMenu;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
-import java.io.InputStream;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.io.OutputStream;
 
 /**
- * Save image with header using ImageJ internal ImageWriter
+ * Save image with header, streaming slice by slice through a FileChannel (see RawStackWriter).
+ * Saves run on the shared ExportQueue (per-device concurrency, memory budget, cancellation).
+ * A sub-volume (ROI bounds and slice range, see ExportRegion) is gathered straight from the source stack.
+ * Incremental mode re-saves to the same target by rewriting only the changed slices (see IncrementalStackWriter).
  * Supports: 16-bit signed/unsigned, 32-bit signed/unsigned, 32-bit float, 64-bit float
  */
 public final class SaveWithHeader_ extends PlugInTool implements ActionListener {
@@ -26,11 +26,12 @@ public final class SaveWithHeader_ extends PlugInTool implements ActionListener
     private ImagePlus impLast = null;
     private PopupMenu popup1 = null, oldPopup = null;
 
-    private static final String[] types = {
+    static final String[] types = {
             "16-bit signed", "16-bit unsigned",
             "32-bit signed", "32-bit unsigned",
             "32-bit float", "64-bit float"
     };
+    private static final String[] writeModes = {"Parallel", "Streaming", "Memory-mapped", "Compressed (gzip)", "Incremental"};
     public SaveWithHeader_() {
         // 插件构造时注册自己到工具栏
         Toolbar.addPlugInTool(this);
@@ -55,6 +56,12 @@ public final class SaveWithHeader_ extends PlugInTool implements ActionListener
         MenuItem saveItem = new MenuItem("Save with Header");
         saveItem.addActionListener(this);
         popup1.add(saveItem);
+        popup1.addSeparator();
+        for (String label : new String[]{"Export Queue...", "Show Metrics", "Save Metrics (JSON)..."}) {
+            MenuItem item = new MenuItem(label);
+            item.addActionListener(this);
+            popup1.add(item);
+        }
         par.add(popup1);
     }
 
@@ -62,6 +69,41 @@ public final class SaveWithHeader_ extends PlugInTool implements ActionListener
     public void actionPerformed(ActionEvent e) {
         if ("Save with Header".equals(e.getActionCommand())) {
             saveWithHeaderAction();
+        } else if ("Export Queue...".equals(e.getActionCommand())) {
+            exportQueueAction();
+        } else if ("Show Metrics".equals(e.getActionCommand())) {
+            Metrics.show();
+        } else if ("Save Metrics (JSON)...".equals(e.getActionCommand())) {
+            saveMetricsAction();
+        }
+    }
+
+    /** 列出运行中与排队中的导出，可取消或提前其中一个 */
+    private void exportQueueAction() {
+        java.util.List<ExportQueue.Job> jobs = ExportQueue.get().jobs();
+        if (jobs.isEmpty()) {
+            IJ.showMessage("Export Queue", "No exports running or queued.");
+            return;
+        }
+        String[] names = new String[jobs.size()];
+        for (int i = 0; i < names.length; i++) names[i] = jobs.get(i).toString();
+        GenericDialog gd = new GenericDialog("Export Queue");
+        gd.addChoice("Export:", names, names[0]);
+        gd.addChoice("Action:", new String[]{"Cancel", "Move to front"}, "Cancel");
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+        ExportQueue.Job job = jobs.get(gd.getNextChoiceIndex());
+        if ("Cancel".equals(gd.getNextChoice())) ExportQueue.get().cancel(job);
+        else ExportQueue.get().moveToFront(job);
+    }
+
+    private void saveMetricsAction() {
+        ij.io.SaveDialog sd = new ij.io.SaveDialog("Save Metrics", "metrics.json", ".json");
+        if (sd.getDirectory() == null || sd.getFileName() == null) return;
+        try {
+            Metrics.writeJson(new java.io.File(sd.getDirectory(), sd.getFileName()).toPath());
+        } catch (java.io.IOException ex) {
+            IJ.showMessage("Error", "Failed to save metrics: " + ex.getMessage());
         }
     }
 
@@ -72,119 +114,140 @@ public final class SaveWithHeader_ extends PlugInTool implements ActionListener
         }
 
         try {
-            // 1. 输入参数
+            // 1. 输入参数（由 OpenWithHeader_ 打开的图像可直接复用其 header）
+            RawHeader attached = impLast.getProperty(RawHeader.PROPERTY) instanceof RawHeader
+                    ? (RawHeader) impLast.getProperty(RawHeader.PROPERTY) : null;
             GenericDialog gd = new GenericDialog("Save with Header Options");
-            gd.addNumericField("Header length (bytes):", 1024, 0);
+            gd.addNumericField("Header length (bytes):", attached != null ? attached.length() : 1024, 0);
             gd.addChoice("Image Data Type:", types, "16-bit signed");
+            gd.addChoice("Write mode:", writeModes, writeModes[0]);
+            gd.addCheckbox("Detect header length from source file size", false);
+            double[] rescale = rescaleOf(impLast);
+            gd.addCheckbox("Apply rescale slope/intercept", false);
+            gd.addNumericField("Rescale slope:", rescale[1], 6);
+            gd.addNumericField("Rescale intercept:", rescale[0], 6);
+            // 子区域：当前 ROI 的外接矩形与 slice 范围，直接从源 stack 收集，不生成裁剪副本
+            boolean hasRoi = impLast.getRoi() != null && impLast.getRoi().isArea();
+            int nSlices = impLast.getStackSize();
+            if (hasRoi) gd.addCheckbox("Export ROI bounds only", true);
+            if (nSlices > 1) {
+                gd.addNumericField("First slice:", 1, 0);
+                gd.addNumericField("Last slice:", nSlices, 0);
+            }
+            if (attached != null) gd.addCheckbox("Reuse opened header (" + attached + ")", true);
             gd.showDialog();
             if (gd.wasCanceled()) return;
 
-            int headerLength = (int) gd.getNextNumber();
+            long headerLength = (long) gd.getNextNumber();
             String typeChoice = gd.getNextChoice();
+            String modeChoice = gd.getNextChoice();
+            boolean detectLength = gd.getNextBoolean();
+            boolean applyRescale = gd.getNextBoolean();
+            double slope = gd.getNextNumber();
+            double intercept = gd.getNextNumber();
+            boolean useRoi = hasRoi && gd.getNextBoolean();
+            int firstSlice = nSlices > 1 ? (int) gd.getNextNumber() : 1;
+            int lastSlice = nSlices > 1 ? (int) gd.getNextNumber() : 1;
+            boolean reuseHeader = attached != null && gd.getNextBoolean();
+
+            if (headerLength < 0) {
+                IJ.showMessage("Error", "Header length cannot be negative!");
+                return;
+            }
+            ExportRegion region = ExportRegion.of(impLast, useRoi, firstSlice, lastSlice);
+            if (region == null) {
+                IJ.showMessage("Error", "Invalid slice range (1-" + nSlices + ")!");
+                return;
+            }
 
-            // 2. header 文件
-            ij.io.OpenDialog od = new ij.io.OpenDialog("Choose Source Header File");
-            String headerPath = od.getPath();
-            if (headerPath == null) return;
+            // 2. header 文件（复用时不再选择和读取源文件）
+            RawHeader header;
+            if (reuseHeader) {
+                header = attached;
+            } else {
+                ij.io.OpenDialog od = new ij.io.OpenDialog("Choose Source Header File");
+                String headerPath = od.getPath();
+                if (headerPath == null) return;
+                java.io.File source = new java.io.File(headerPath);
+                long dataBytes = sourceDataBytes(impLast);
+                headerLength = checkHeaderLength(source, headerLength, detectLength, dataBytes);
+                if (headerLength < 0) return;
+                // 检查 header 文件长度；不合格的长度不记录到 HeaderIndex，也不缓存
+                if (source.length() < headerLength) {
+                    IJ.showMessage("Error", "Header file is smaller than header length!");
+                    return;
+                }
+                header = HeaderIndex.header(source, headerLength, dataBytes);
+            }
 
             // 3. 目标文件
-            ij.io.SaveDialog sd = new ij.io.SaveDialog("Choose Target File", "output.raw", ".raw");
+            boolean gzip = "Compressed (gzip)".equals(modeChoice);
+            ij.io.SaveDialog sd = gzip ? new ij.io.SaveDialog("Choose Target File", "output.raw.gz", ".gz")
+                    : new ij.io.SaveDialog("Choose Target File", "output.raw", ".raw");
             String dir = sd.getDirectory();
             String file = sd.getFileName();
             if (dir == null || file == null) return;
             String tgtPath = dir + file;
 
-            // 4. 检查路径是否相同
-            java.io.File srcFile = new java.io.File(headerPath);
+            // 4. 检查路径是否相同：目标既不能是 header 源文件，也不能是图像自己的数据文件（虚拟 stack 边读边写会被截断）
+            java.io.File srcFile = header.source();
             java.io.File dstFile = new java.io.File(tgtPath);
-            if (srcFile.getAbsolutePath().equals(dstFile.getAbsolutePath())) {
+            if (srcFile != null && srcFile.getAbsolutePath().equals(dstFile.getAbsolutePath())) {
                 ij.IJ.showMessage("Error", "Source and target file paths cannot be the same!");
                 return;
             }
-
-            // 5. 读取 header（只读前 headerLength 字节）
-            byte[] headerBytes = new byte[headerLength];
-            try (InputStream in = Files.newInputStream(Paths.get(headerPath))) {
-                int read = in.read(headerBytes, 0, headerLength);
-                if (read < headerLength) {
-                    IJ.showMessage("Error", "Header file is smaller than header length!");
-                    return;
-                }
+            java.io.File imageFile = imageFile(impLast);
+            if (imageFile != null && imageFile.getAbsolutePath().equals(dstFile.getAbsolutePath())) {
+                ij.IJ.showMessage("Error", "Target file is the file the image was opened from!");
+                return;
             }
 
             // 5. 构建 FileInfo
-            FileInfo fi = new FileInfo();
-            fi.width = impLast.getWidth();
-            fi.height = impLast.getHeight();
-            fi.nImages = impLast.getStackSize();
-            fi.intelByteOrder = true;
-            fi.fileName = tgtPath;
-            fi.directory = "";
-            switch (typeChoice) {
-                case "16-bit signed": fi.fileType = FileInfo.GRAY16_SIGNED; break;
-                case "16-bit unsigned": fi.fileType = FileInfo.GRAY16_UNSIGNED; break;
-                case "32-bit signed": fi.fileType = FileInfo.GRAY32_INT; break;
-                case "32-bit unsigned": fi.fileType = FileInfo.GRAY32_UNSIGNED; break;
-                case "32-bit float": fi.fileType = FileInfo.GRAY32_FLOAT; break;
-                case "64-bit float": fi.fileType = FileInfo.GRAY64_FLOAT; break;
-                default: IJ.showMessage("Error", "Unsupported type"); return;
+            FileInfo fi = exportInfo(impLast, fileTypeOf(typeChoice), header, region);
+            if (fi.fileType < 0) {
+                IJ.showMessage("Error", "Unsupported type");
+                return;
             }
+            fi.fileName = tgtPath;
+            if (applyRescale) setRescale(fi, slope, intercept);
 
-            // 6. 获取像素数组
-            Object[] stack = new Object[fi.nImages];
-            for (int s = 0; s < fi.nImages; s++) {
-                stack[s] = impLast.getStack().getPixels(s + 1);
+            // 6. 启动后台线程，逐 slice 转换（类型转换、舍入、饱和及可选的重标定，见 PixelKernels）并写入（不再复制整个 stack；虚拟 stack 边读边写）
+            //    Parallel: 多线程转换 + 单线程按序写出；Streaming: 单线程逐 slice；
+            //    Memory-mapped: 预设文件大小，多线程直接写入各 slice 的映射区域；
+            //    Compressed (gzip): 多线程分块压缩为多 member gzip，解压后即 header + raw；
+            //    Incremental: 与上次保存的校验值比较，只在原位置重写变化的 slice
+            ImageStack stack = impLast.getStack();
+            if (stack.isVirtual()) IJ.showStatus("Virtual stack: streaming slices from disk");
+            StackWriter writer;
+            switch (modeChoice) {
+                case "Streaming": writer = new RawStackWriter(fi, stack, region); break;
+                case "Memory-mapped": writer = new MappedStackWriter(fi, stack, region); break;
+                case "Compressed (gzip)": writer = new GzipStackWriter(fi, stack, region); break;
+                case "Incremental": writer = new IncrementalStackWriter(fi, stack, region); break;
+                default: writer = new ParallelStackWriter(fi, stack, region); break;
             }
-            fi.pixels = stack;
-
-            // 7. 启动后台线程
-            javax.swing.SwingWorker<Void, Integer> worker = new javax.swing.SwingWorker<Void, Integer>() {
-                @Override
-                protected Void doInBackground() throws Exception {
-                    try (OutputStream out = Files.newOutputStream(Paths.get(tgtPath))) {
-                        out.write(headerBytes, 0, headerLength);
-
-                        ImageWriter writer = new ImageWriter(fi);
-
-                        if (fi.fileType == FileInfo.GRAY16_SIGNED) {
-                            int n = fi.width * fi.height;
-                            short[][] tempStack = new short[fi.nImages][];
-                            for (int s = 0; s < fi.nImages; s++) {
-                                short[] original = (short[]) stack[s];
-                                short[] temp = new short[n];
-                                for (int i = 0; i < n; i++) temp[i] = (short)(original[i] - 32768);
-                                tempStack[s] = temp;
-                                publish(s + 1); // 更新进度
-                            }
-                            fi.pixels = tempStack;
-                            writer.write(out);
-                            fi.pixels = stack;
-                        } else {
-                            writer.write(out);
-                        }
-                    }
-                    return null;
-                }
-
-                @Override
-                protected void process(java.util.List<Integer> chunks) {
-                    int last = chunks.get(chunks.size() - 1);
-                    IJ.showStatus("Saving slice " + last + "/" + fi.nImages);
-                    IJ.showProgress(last, fi.nImages);
-                }
-
-                @Override
-                protected void done() {
-                    try {
-                        get(); // 捕获异常
+            if (!region.isWhole(impLast)) IJ.log("Save with Header: exporting " + region);
+            // 记录导出字节数（未压缩）与耗时，见 Metrics
+            StackWriter measured = Metrics.measured(writer, fi.getOffset() + RawStackWriter.sliceBytes(fi) * fi.nImages);
+            // 进入导出队列：按设备限制并发、受内存预算约束，可在 "Export Queue..." 中取消
+            ExportQueue.get().submit(file, fi.nImages, measured, header, dstFile.toPath(), s -> {
+                IJ.showStatus("Saving " + file + ": slice " + s + "/" + fi.nImages);
+                IJ.showProgress(s, fi.nImages);
+            }, job -> java.awt.EventQueue.invokeLater(() -> {
+                switch (job.state()) {
+                    case DONE:
                         IJ.showStatus("Save completed");
-                        IJ.showMessage("Save", "Image saved successfully!");
-                    } catch (Exception ex) {
-                        IJ.showMessage("Error", "Save failed: " + ex.getMessage());
-                    }
+                        IJ.showMessage("Save", "Image saved successfully!\n" + tgtPath);
+                        break;
+                    case CANCELLED:
+                        IJ.showStatus("Save cancelled: " + file);
+                        break;
+                    default:
+                        Throwable cause = job.error();
+                        IJ.showMessage("Error", "Save failed: " + (cause != null ? cause.getMessage() : "unknown error"));
                 }
-            };
-            worker.execute();
+            }));
+            if (ExportQueue.get().jobs().size() > 1) IJ.showStatus("Export queued: " + file);
 
         } catch (Exception ex) {
             IJ.showMessage("Error", "Failed: " + ex.getMessage());
@@ -192,6 +255,106 @@ public final class SaveWithHeader_ extends PlugInTool implements ActionListener
     }
 
 
+    /**
+     * 由源文件大小推算 header 长度（源文件大小 - 源像素数据字节数 dataBytes），
+     * HeaderIndex 中由推算得到且仍一致的记录标为来自索引。自动检测且推算结果有效时返回推算值，
+     * 无法推算时提示并保留输入值；手动输入与推算不符时提示确认。返回 -1 表示取消。
+     */
+    private long checkHeaderLength(java.io.File source, long entered, boolean detect, long dataBytes) {
+        if (dataBytes < 0) {
+            if (detect) IJ.showMessage("Header length", "The image has no raw source layout to detect the header length from.\n"
+                    + "Using the entered " + entered + " bytes.");
+            return entered;
+        }
+        long known = HeaderIndex.knownLength(source, dataBytes);
+        long detected = known >= 0 ? known : HeaderIndex.detect(source, dataBytes);
+        if (detect) {
+            if (detected < 0) {
+                IJ.showMessage("Header length", "Source file (" + source.length() + " bytes) is smaller than the image data ("
+                        + dataBytes + " bytes).\nUsing the entered " + entered + " bytes.");
+                return entered;
+            }
+            IJ.showStatus("Header length: " + detected + " bytes" + (known >= 0 ? " (from index)" : ""));
+            return detected;
+        }
+        if (detected >= 0 && detected != entered
+                && !IJ.showMessageWithCancel("Header length",
+                "Source file size suggests a header of " + detected + " bytes, not " + entered + ".\n"
+                        + "Continue with " + entered + " bytes?"))
+            return -1;
+        return entered;
+    }
+
+    /** imp 打开时所读的文件（原始 FileInfo 的目录与文件名），不是由文件打开时返回 null */
+    static java.io.File imageFile(ImagePlus imp) {
+        FileInfo fi = imp.getOriginalFileInfo();
+        if (fi == null || fi.fileName == null || fi.fileName.isEmpty()) return null;
+        return fi.directory != null && !fi.directory.isEmpty() ? new java.io.File(fi.directory, fi.fileName)
+                : new java.io.File(fi.fileName);
+    }
+
+    /**
+     * 源文件中 header 之后像素数据的字节数，按图像打开时的原始布局（尺寸、层数、类型）计算，
+     * 与导出类型和当前图像的裁剪、子 stack 无关。没有原始布局或数据经过压缩时返回 -1（无法推算）。
+     */
+    static long sourceDataBytes(ImagePlus imp) {
+        FileInfo source = imp.getOriginalFileInfo();
+        if (source == null || source.width <= 0 || source.height <= 0 || source.compression > FileInfo.COMPRESSION_NONE)
+            return -1;
+        FileInfo layout = new FileInfo();
+        layout.width = source.width;
+        layout.height = source.height;
+        layout.fileType = source.fileType;
+        long sliceBytes = RawStackWriter.sliceBytes(layout);
+        return sliceBytes > 0 ? sliceBytes * Math.max(1, source.nImages) : -1;
+    }
+
+    /** 导出 imp 时写入文件的布局：尺寸、header 长度（long）、目标类型，little-endian */
+    static FileInfo exportInfo(ImagePlus imp, int fileType, RawHeader header) {
+        return exportInfo(imp, fileType, header, ExportRegion.of(imp.getStack()));
+    }
+
+    /** 只导出 region 时的布局：尺寸为 ROI 外接矩形，层数为 slice 范围 */
+    static FileInfo exportInfo(ImagePlus imp, int fileType, RawHeader header, ExportRegion region) {
+        FileInfo fi = new FileInfo();
+        fi.width = region.bounds.width;
+        fi.height = region.bounds.height;
+        fi.nImages = region.slices();
+        fi.longOffset = header.length(); // long：header 可超过 2 GB
+        fi.intelByteOrder = true;
+        fi.directory = "";
+        fi.fileType = fileType;
+        return fi;
+    }
+
+    /** 图像标定为直线函数（DICOM rescale、16-bit signed）时返回其 {intercept, slope}，否则 {0, 1} */
+    static double[] rescaleOf(ImagePlus imp) {
+        Calibration cal = imp.getCalibration();
+        double[] c = cal.getCoefficients();
+        if (cal.getFunction() == Calibration.STRAIGHT_LINE && c != null && c.length >= 2)
+            return new double[]{c[0], c[1]};
+        return new double[]{0, 1};
+    }
+
+    /** 写出 value * slope + intercept（PixelKernels 按 FileInfo 的直线标定转换） */
+    static void setRescale(FileInfo fi, double slope, double intercept) {
+        fi.calibrationFunction = Calibration.STRAIGHT_LINE;
+        fi.coefficients = new double[]{intercept, slope};
+    }
+
+    /** 类型名称 -> FileInfo 文件类型，不支持时返回 -1 */
+    static int fileTypeOf(String typeChoice) {
+        switch (typeChoice) {
+            case "16-bit signed": return FileInfo.GRAY16_SIGNED;
+            case "16-bit unsigned": return FileInfo.GRAY16_UNSIGNED;
+            case "32-bit signed": return FileInfo.GRAY32_INT;
+            case "32-bit unsigned": return FileInfo.GRAY32_UNSIGNED;
+            case "32-bit float": return FileInfo.GRAY32_FLOAT;
+            case "64-bit float": return FileInfo.GRAY64_FLOAT;
+            default: return -1;
+        }
+    }
+
     @Override
     public String getToolIcon() { return "T0b12S Tbb12H"; }
 
@@ -0,0 +1,128 @@
+import ij.io.FileInfo;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Checksums of the encoded header and slices of an exported file, recorded at save time so the
+ * next incremental save to the same target (see IncrementalStackWriter) can tell which slices
+ * changed. A record is kept per target path in the SaveWithHeader cache directory and is only
+ * trusted while the target still has the recorded size and modification time and the export
+ * layout (dimensions, type, header length, byte order, rescale) is the same.
+ */
+final class SliceChecksums {
+
+    private static final int VERSION = 1;
+
+    /** header 的校验值；每个写出块（通常为一个 slice）一个校验值，按文件中的顺序 */
+    final long header;
+    final long[] chunks;
+
+    SliceChecksums(long header, long[] chunks) {
+        this.header = header;
+        this.chunks = chunks;
+    }
+
+    /** 影响文件内容布局的参数；不同时不能沿用记录 */
+    static String layout(FileInfo fi) {
+        return fi.width + "x" + fi.height + "x" + fi.nImages + ",type=" + fi.fileType + ",offset=" + fi.getOffset()
+                + ",intel=" + fi.intelByteOrder + ",cal=" + fi.calibrationFunction + Arrays.toString(fi.coefficients);
+    }
+
+    /** target 的记录；不存在、已过期（文件被改动）或布局不同时返回 null */
+    static SliceChecksums load(Path target, String layout) {
+        File f = recordFile(target);
+        File t = target.toFile();
+        if (!f.isFile() || !t.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(f.toPath()))) {
+            if (in.readInt() != VERSION || !in.readUTF().equals(layout)
+                    || in.readLong() != t.length() || in.readLong() != t.lastModified())
+                return null;
+            long header = in.readLong();
+            long[] chunks = new long[in.readInt()];
+            for (int i = 0; i < chunks.length; i++) chunks[i] = in.readLong();
+            return new SliceChecksums(header, chunks);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** 记录 target 当前的大小与修改时间，须在 target 写完并关闭后调用 */
+    void save(Path target, String layout) throws IOException {
+        File t = target.toFile();
+        try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(recordFile(target).toPath()))) {
+            out.writeInt(VERSION);
+            out.writeUTF(layout);
+            out.writeLong(t.length());
+            out.writeLong(t.lastModified());
+            out.writeLong(header);
+            out.writeInt(chunks.length);
+            for (long c : chunks) out.writeLong(c);
+        }
+    }
+
+    static void remove(Path target) {
+        recordFile(target).delete();
+    }
+
+    private static File recordFile(Path target) {
+        return new File(HeaderIndex.cacheDir(), HeaderIndex.pathDigest(target.toFile()) + ".crc");
+    }
+
+    /** 64 位校验值：高 32 位 CRC32，低 32 位 Adler32；非线程安全 */
+    static final class Hasher {
+        private final CRC32 crc = new CRC32();
+        private final Adler32 adler = new Adler32();
+
+        /** buffer 中 position..limit 的内容，不改变 buffer 的 position */
+        long of(ByteBuffer buffer) {
+            crc.reset();
+            adler.reset();
+            update(buffer);
+            return value();
+        }
+
+        /** header 的全部字节（经 RawHeader.copyTo 读取，不写任何文件） */
+        long of(RawHeader header) throws IOException {
+            crc.reset();
+            adler.reset();
+            header.copyTo(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) {
+                    int n = src.remaining();
+                    update(src);
+                    src.position(src.limit());
+                    return n;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            });
+            return value();
+        }
+
+        private void update(ByteBuffer buffer) {
+            crc.update(buffer.duplicate());
+            adler.update(buffer.duplicate());
+        }
+
+        private long value() {
+            return crc.getValue() << 32 | adler.getValue();
+        }
+    }
+}
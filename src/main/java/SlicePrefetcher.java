@@ -0,0 +1,91 @@
+import ij.ImageStack;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Hands out the slices of a stack (or of a slice range) in order.
+ * For a virtual stack the slices are read lazily from disk on one background thread,
+ * at most {@code window} slices ahead of the consumer, so only that many are ever in memory.
+ * Reads lock the stack, like StackHistogram, because VirtualStack and its FileInfo readers are not
+ * thread-safe while ImageJ displays other slices of the same stack.
+ */
+final class SlicePrefetcher implements AutoCloseable {
+
+    /** 虚拟 stack 的默认预读窗口（slice 数） */
+    static final int READ_AHEAD = 4;
+
+    private final ImageStack stack;
+    private final int lastSlice;
+    private final ExecutorService reader;
+    private final ArrayDeque<Future<Object>> pending = new ArrayDeque<>();
+    private int nextToRead;
+    private int nextToReturn;
+
+    private SlicePrefetcher(ImageStack stack, int firstSlice, int lastSlice, int window) {
+        this.stack = stack;
+        this.lastSlice = lastSlice;
+        this.nextToRead = this.nextToReturn = firstSlice;
+        if (window > 0) {
+            reader = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "SaveWithHeader-prefetch");
+                t.setDaemon(true);
+                return t;
+            });
+            while (pending.size() < window && nextToRead <= lastSlice) submitNext();
+        } else {
+            reader = null;
+        }
+    }
+
+    /** 依次返回第 firstSlice..lastSlice 个 slice；虚拟 stack 使用后台预读，普通 stack 直接返回内存中的像素数组 */
+    static SlicePrefetcher forRange(ImageStack stack, int firstSlice, int lastSlice) {
+        return new SlicePrefetcher(stack, firstSlice, lastSlice, stack.isVirtual() ? READ_AHEAD : 0);
+    }
+
+    boolean hasNext() {
+        return nextToReturn <= lastSlice;
+    }
+
+    /** Returns the pixels of the next slice, blocking until it has been read. */
+    Object next() throws IOException {
+        int n = nextToReturn++;
+        if (reader == null) return checked(stack.getPixels(n), n);
+        Future<Object> head = pending.poll();
+        if (nextToRead <= lastSlice) submitNext();
+        try {
+            return checked(head.get(), n);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading slice " + n);
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to read slice " + n + ": " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void submitNext() {
+        int n = nextToRead++;
+        pending.add(reader.submit(() -> {
+            synchronized (stack) {
+                return stack.getPixels(n);
+            }
+        }));
+    }
+
+    private static Object checked(Object pixels, int n) throws IOException {
+        if (pixels == null) throw new IOException("Unable to read slice " + n);
+        return pixels;
+    }
+
+    @Override
+    public void close() {
+        if (reader == null) return;
+        for (Future<Object> f : pending) f.cancel(true);
+        pending.clear();
+        reader.shutdownNow();
+    }
+}
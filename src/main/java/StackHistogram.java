@@ -0,0 +1,176 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Histogram of a whole stack for "Auto (whole stack)".
+ * Slices are split over a fork-join pool; every leaf fills its own primitive 65536-bin histogram
+ * (raw 8/16-bit values, or float values binned between the stack min and max found in a first
+ * pass) and the leaves are merged on join. When sampling is requested, large stacks are sampled
+ * with a pixel stride, and virtual stacks additionally with a slice stride, since each slice read
+ * goes to disk; otherwise every pixel of every slice is counted.
+ * The result is reduced to the 256 bins ImageStatistics uses, so Auto's clipping logic is unchanged.
+ */
+final class StackHistogram {
+
+    static final int BINS = 65536;
+    /** 采样像素数上限，超过时按步长采样 */
+    static final long MAX_SAMPLES = 1L << 24;
+    /** 虚拟 stack 最多读取的 slice 数 */
+    static final int MAX_VIRTUAL_SLICES = 64;
+    /** 叶任务数约为并行度的这个倍数 */
+    static final int LEAVES_PER_THREAD = 4;
+
+    private StackHistogram() {
+    }
+
+    /**
+     * 整个 stack 的 256-bin 直方图（不含标定，忽略 ROI）；RGB 返回 null。
+     * sample 为 false 时统计全部像素与 slice
+     */
+    static HistogramCache.Histogram of(ImagePlus imp, boolean sample) {
+        ImageStack stack = imp.getStack();
+        int depth = imp.getBitDepth();
+        if (depth == 24) return null;
+        int n = stack.getSize();
+        int sliceStride = sample && stack.isVirtual() ? Math.max(1, (n + MAX_VIRTUAL_SLICES - 1) / MAX_VIRTUAL_SLICES) : 1;
+        long pixels = (long) stack.getWidth() * stack.getHeight() * ((n + sliceStride - 1) / sliceStride);
+        int stride = !sample ? 1 : (int) Math.max(1, (pixels + MAX_SAMPLES - 1) / MAX_SAMPLES);
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int leaf = Math.max(1, n / (LEAVES_PER_THREAD * pool.getParallelism())) * sliceStride; // 每个叶任务的 slice 跨度
+
+        double fmin = 0, fmax = BINS - 1;
+        if (depth == 32) {
+            double[] range = pool.invoke(new RangeTask(stack, 1, n + 1, sliceStride, stride, leaf));
+            if (range[0] > range[1]) return null; // 全部为 NaN
+            fmin = range[0];
+            fmax = range[1];
+        }
+        long[] hist = pool.invoke(new HistogramTask(stack, 1, n + 1, sliceStride, stride, leaf, fmin, fmax));
+        return reduce(hist, depth == 32, fmin, fmax);
+    }
+
+    /** 65536-bin -> 256-bin，分箱方式与 ImageStatistics 相同：[min, max] 等分 */
+    static HistogramCache.Histogram reduce(long[] hist, boolean isFloat, double fmin, double fmax) {
+        int lo = 0, hi = BINS - 1;
+        while (lo < BINS - 1 && hist[lo] == 0) lo++;
+        while (hi > 0 && hist[hi] == 0) hi--;
+        double fbin = (fmax - fmin) / BINS;
+        double min = isFloat ? fmin + lo * fbin : lo;
+        double max = isFloat ? fmin + (hi + 1) * fbin : hi;
+        if (isFloat && hi == BINS - 1) max = fmax;
+        double binSize = (max - min) / 256;
+        int[] out = new int[256];
+        long count = 0;
+        for (int b = lo; b <= hi; b++) {
+            if (hist[b] == 0) continue;
+            double v = isFloat ? fmin + (b + 0.5) * fbin : b;
+            int index = binSize > 0 ? (int) ((v - min) / binSize) : 0;
+            if (index > 255) index = 255;
+            out[index] += (int) Math.min(Integer.MAX_VALUE - out[index], hist[b]);
+            count += hist[b];
+        }
+        return new HistogramCache.Histogram(out, count, min, binSize, min, max, 0);
+    }
+
+    private static Object pixels(ImageStack stack, int slice) {
+        if (!stack.isVirtual()) return stack.getPixels(slice);
+        synchronized (stack) {
+            return stack.getPixels(slice);
+        }
+    }
+
+    /** float stack 的 {min, max}，忽略 NaN 与无穷 */
+    private static final class RangeTask extends RecursiveTask<double[]> {
+        private final ImageStack stack;
+        private final int from, to, sliceStride, stride, leaf;
+
+        RangeTask(ImageStack stack, int from, int to, int sliceStride, int stride, int leaf) {
+            this.stack = stack;
+            this.from = from;
+            this.to = to;
+            this.sliceStride = sliceStride;
+            this.stride = stride;
+            this.leaf = leaf;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from > leaf) {
+                int mid = from + Math.max(1, (to - from) / (2 * sliceStride)) * sliceStride;
+                RangeTask left = new RangeTask(stack, from, mid, sliceStride, stride, leaf);
+                left.fork();
+                double[] r = new RangeTask(stack, mid, to, sliceStride, stride, leaf).compute();
+                double[] l = left.join();
+                return new double[]{Math.min(l[0], r[0]), Math.max(l[1], r[1])};
+            }
+            float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+            for (int s = from; s < to; s += sliceStride) {
+                float[] p = (float[]) pixels(stack, s);
+                for (int i = 0; i < p.length; i += stride) {
+                    float v = p[i];
+                    if (v < min && v != Float.NEGATIVE_INFINITY) min = v;
+                    if (v > max && v != Float.POSITIVE_INFINITY) max = v;
+                }
+            }
+            return new double[]{min, max};
+        }
+    }
+
+    /** 叶任务各自统计一个 int[65536]，合并为 long[] */
+    private static final class HistogramTask extends RecursiveTask<long[]> {
+        private final ImageStack stack;
+        private final int from, to, sliceStride, stride, leaf;
+        private final double fmin, fmax;
+
+        HistogramTask(ImageStack stack, int from, int to, int sliceStride, int stride, int leaf,
+                      double fmin, double fmax) {
+            this.stack = stack;
+            this.from = from;
+            this.to = to;
+            this.sliceStride = sliceStride;
+            this.stride = stride;
+            this.leaf = leaf;
+            this.fmin = fmin;
+            this.fmax = fmax;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (to - from > leaf) {
+                int mid = from + Math.max(1, (to - from) / (2 * sliceStride)) * sliceStride;
+                HistogramTask left = new HistogramTask(stack, from, mid, sliceStride, stride, leaf, fmin, fmax);
+                left.fork();
+                long[] r = new HistogramTask(stack, mid, to, sliceStride, stride, leaf, fmin, fmax).compute();
+                long[] l = left.join();
+                for (int i = 0; i < BINS; i++) r[i] += l[i];
+                return r;
+            }
+            int[] hist = new int[BINS];
+            double scale = fmax > fmin ? BINS / (fmax - fmin) : 0;
+            for (int s = from; s < to; s += sliceStride) {
+                Object pixels = pixels(stack, s);
+                if (pixels instanceof short[]) {
+                    short[] p = (short[]) pixels;
+                    for (int i = 0; i < p.length; i += stride) hist[p[i] & 0xffff]++;
+                } else if (pixels instanceof byte[]) {
+                    byte[] p = (byte[]) pixels;
+                    for (int i = 0; i < p.length; i += stride) hist[p[i] & 0xff]++;
+                } else if (pixels instanceof float[]) {
+                    float[] p = (float[]) pixels;
+                    for (int i = 0; i < p.length; i += stride) {
+                        float v = p[i];
+                        if (!(v >= fmin && v <= fmax)) continue; // NaN 与无穷
+                        int b = (int) ((v - fmin) * scale);
+                        hist[b < BINS ? b : BINS - 1]++;
+                    }
+                }
+            }
+            long[] out = new long[BINS];
+            for (int i = 0; i < BINS; i++) out[i] = hist[i];
+            return out;
+        }
+    }
+}
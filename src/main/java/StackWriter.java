@@ -0,0 +1,30 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.function.IntConsumer;
+
+/**
+ * Writes a header followed by the raw slices of a stack.
+ */
+interface StackWriter {
+
+    /**
+     * Writes header (fi.getOffset() bytes), then all slices to target.
+     * progress receives the 1-based number of each slice once it has been written.
+     */
+    void write(RawHeader header, Path target, IntConsumer progress) throws IOException;
+
+    /** 写出期间占用的缓冲区字节数（估计），用于 ExportQueue 的内存预算 */
+    default long bufferBytes() {
+        return 0;
+    }
+
+    /** 上次 write 实际写出的字节数（未压缩）；-1 表示按布局全部写出 */
+    default long bytesWritten() {
+        return -1;
+    }
+
+    /** 取消时是否保留目标文件（默认删除不完整的输出） */
+    default boolean keepsPartialOutput() {
+        return false;
+    }
+}
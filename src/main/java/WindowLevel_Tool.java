@@ -1,41 +1,97 @@
 import ij.IJ;
 import ij.ImageJ;
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.Menus;
+import ij.WindowManager;
 import ij.gui.Toolbar;
-import ij.measure.Calibration;
 import ij.plugin.tool.PlugInTool;
-import ij.process.ImageStatistics;
 
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Window/Level Tool with multiple CT preset windows.
+ * Drags only update the target window/level; the display is rendered at most once per frame
+ * (see RenderScheduler) and the last state is applied when the mouse is released.
+ * 16-bit images are previewed through a cached byte LUT painted straight onto the canvas
+ * (see LutRenderer); ImageJ's display image is rebuilt once the interaction pauses.
+ * While dragging, large views are previewed from a 1/4 resolution level (see PreviewPyramid)
+ * and rendered at full resolution on release.
+ * For CT series whose slices carry different rescale slope/intercept, the window is kept in HU
+ * and re-applied with each slice's own rescale when the slice changes.
+ * RGB images are mapped from a single copy of their original pixels (see RgbRenderer).
+ * In link mode a window/level change is carried over, in HU (or calibrated values for non-CT
+ * images), to every other open image of the same kind, each converted with its own rescale;
+ * the linked repaints go through the same per-frame scheduler as the active image.
+ * Only the most recently created instance stays registered as a listener; the preview levels of
+ * all instances are built on one shared daemon thread.
  */
-public final class WindowLevel_Tool extends PlugInTool implements ActionListener {
+public final class WindowLevel_Tool extends PlugInTool implements ActionListener, ImageListener {
     public WindowLevel_Tool() {
+        // 每次运行菜单命令都会新建实例：先释放旧实例，只保留一个接收 ImageJ 事件的工具
+        synchronized (WindowLevel_Tool.class) {
+            if (active != null) active.dispose();
+            active = this;
+        }
         // 插件构造时注册自己到工具栏
         Toolbar.addPlugInTool(this);
+        commitTimer.setRepeats(false);
+        ImagePlus.addImageListener(this);
     }
 
+    /** 当前注册的工具实例 */
+    private static WindowLevel_Tool active;
+    /** 构建降采样层的后台线程（守护线程，所有实例共享） */
+    private static final ExecutorService BACKGROUND = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "WindowLevel-background");
+        t.setDaemon(true);
+        return t;
+    });
+
     static final int AUTO_THRESHOLD = 5000;
+    /** LUT 预览后，空闲这么久再让 ImageJ 重建显示图像 */
+    static final int COMMIT_DELAY_MS = 200;
 
     int autoThreshold;
     private double currentMin = 0;
     private double currentMax = 0;
     private double rescaleIntercept = 0;
     private double rescaleSlope = 1.0;
-    private double ctImgLevel, ctImgWidth;
     private int lastX = -1;
     private int lastY = -1;
     private ImagePlus impLast = null;
     private PopupMenu popup1 = null, oldPopup = null;
-    private MenuItem autoItem, resetItem;
+    private MenuItem autoItem, autoStackItem, resetItem;
+    private CheckboxMenuItem linkItem, sampleItem;
     private final int OFFSET = 0;
-    private boolean RGB, isCT = false;
+    private boolean RGB, isCT = false, autoWholeStack, linked;
+    // "Auto (whole stack)" 对大 stack 采样统计，关闭时统计全部像素
+    private boolean sampleStack = true;
+    private final RenderScheduler scheduler = new RenderScheduler();
+    private final LutRenderer renderer = new LutRenderer();
+    private final RgbRenderer rgb = new RgbRenderer();
+    private final PreviewPyramid pyramid = new PreviewPyramid(BACKGROUND);
+    private final HistogramCache histograms = new HistogramCache();
+    private final javax.swing.Timer commitTimer = new javax.swing.Timer(COMMIT_DELAY_MS, e -> commit());
+    private final Set<ImagePlus> uncommitted = new LinkedHashSet<>();
+    // 每个 slice 的 rescale（HU = (v + coef0) * slope + intercept），各 slice 相同时为 null
+    private double[] sliceSlope, sliceIntercept;
+    // 当前窗宽窗位（HU），slice 变化时按该 slice 的 rescale 重新换算
+    private double huLevel, huWidth;
+    private boolean huValid;
+    // impLast 上次通知时的 slice，0 表示未知
+    private int lastSlice;
+    // 尚未绘制的最早一次拖动事件的时间（System.nanoTime），0 表示没有
+    private long dragPending;
 
     // -------------------- CT 窗宽窗位枚举 --------------------
     public enum CtWindowPreset {
@@ -105,8 +161,11 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
         if (impLast != imp) setupImage(imp, false);
         lastX = e.getX();
         lastY = e.getY();
-        currentMin = imp.getDisplayRangeMin();
-        currentMax = imp.getDisplayRangeMax();
+        double[] range = RGB ? rgb.range(imp) : new double[]{imp.getDisplayRangeMin(), imp.getDisplayRangeMax()};
+        currentMin = range[0];
+        currentMax = range[1];
+        pyramid.request(imp); // 拖动开始时在后台准备降采样层
+        dragPending = 0;
     }
 
     @Override
@@ -124,10 +183,28 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
         double xScaledValue = -minMaxDifference * xRatio; // invert x
         double yScaledValue = minMaxDifference * yRatio;
 
-        adjustWindowLevel(imp, xScaledValue, yScaledValue);
+        // 只记录目标窗宽窗位，渲染合并到下一帧
+        if (dragPending == 0) dragPending = System.nanoTime();
+        double[] range = windowLevelRange(imp, xScaledValue, yScaledValue);
+        scheduler.schedule(imp, () -> applyDisplayRange(imp, range[0], range[1], true));
+        propagate(imp, range[0], range[1], true);
+    }
+
+    @Override
+    public void mouseReleased(ImagePlus imp, MouseEvent e) {
+        scheduler.flush();
+        commit();
     }
 
     void adjustWindowLevel(ImagePlus imp, double xDifference, double yDifference) {
+        scheduler.cancel(imp);
+        double[] range = windowLevelRange(imp, xDifference, yDifference);
+        applyDisplayRange(imp, range[0], range[1], false);
+        propagate(imp, range[0], range[1], false);
+    }
+
+    /** 由相对于 currentMin/currentMax 的偏移计算新的显示范围 {min, max}，并在状态栏显示窗宽窗位 */
+    private double[] windowLevelRange(ImagePlus imp, double xDifference, double yDifference) {
         double currentWindow = currentMax - currentMin;
         double currentLevel = currentMin + (.5 * currentWindow);
 
@@ -137,16 +214,182 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
         if (newWindow < 0) newWindow = 0;
         if (newLevel < 0) newLevel = 0;
 
-        double printWin = newWindow * rescaleSlope;
-        double printLev = (newLevel + getCoef0(imp)) * rescaleSlope + rescaleIntercept;
+        int slice = imp.getCurrentSlice();
+        double printWin = newWindow * slopeOf(slice);
+        double printLev = (newLevel + getCoef0(imp)) * slopeOf(slice) + interceptOf(slice);
         IJ.showStatus("Window: " + IJ.d2s(printWin) + ", Level: " + IJ.d2s(printLev));
 
         double newMin = newLevel - (.5 * newWindow);
         double newMax = newLevel + (.5 * newWindow);
+        return new double[]{newMin, newMax};
+    }
+
+    /** preview 为 true 时（拖动中），可见区域足够大且降采样层就绪则以低分辨率渲染 */
+    private void applyDisplayRange(ImagePlus imp, double min, double max, boolean preview) {
+        long t0 = System.nanoTime();
+        if (RGB && rgb.apply(imp, min, max)) {
+            imp.draw(); // 显示图像直接包装像素数组
+        } else {
+            imp.setDisplayRange(min, max);
+            rememberWindow(imp, min, max);
+            if (renderer.paint(imp, preview ? previewLevel(imp) : null)) deferCommit(imp);
+            else imp.updateAndDraw();
+        }
+        long t1 = System.nanoTime();
+        Metrics.recordNanos(Metrics.PAINT, t1 - t0);
+        if (preview && dragPending != 0) {
+            Metrics.recordNanos(Metrics.DRAG_TO_PAINT, t1 - dragPending);
+            dragPending = 0;
+        }
+    }
+
+    private void deferCommit(ImagePlus imp) {
+        uncommitted.add(imp);
+        commitTimer.restart();
+    }
+
+    // -------------------- 联动 --------------------
+    /**
+     * 链接模式下把 imp 的显示范围换算为 HU（非 CT 为标定值），再按各图像自己的 rescale
+     * 换算回像素值应用到其他同类图像；重绘交给 scheduler，与当前图像在同一帧内完成。
+     */
+    private void propagate(ImagePlus imp, double min, double max, boolean preview) {
+        if (!linked || RGB || imp != impLast) return;
+        int[] ids = WindowManager.getIDList();
+        if (ids == null) return;
+        int slice = imp.getCurrentSlice();
+        double slope = isCT ? slopeOf(slice) : 1.0, intercept = isCT ? interceptOf(slice) : 0.;
+        double width = (max - min) * slope;
+        double level = ((min + max) / 2 + getCoef0(imp)) * slope + intercept;
+        for (int id : ids) {
+            ImagePlus img = WindowManager.getImage(id);
+            if (img == null || img == imp || img.getType() == ImagePlus.COLOR_RGB || img.getWindow() == null) continue;
+            double[] rescale = linkRescale(img);
+            if ((rescale != null) != isCT) continue; // 只联动同类图像
+            double s = rescale != null ? rescale[0] : 1.0, b = rescale != null ? rescale[1] : 0.;
+            double w = width / s;
+            double l = (level - b) / s - getCoef0(img);
+            scheduler.schedule(img, () -> showLinked(img, l - w / 2, l + w / 2, preview));
+        }
+    }
+
+    /** 联动图像当前 slice 的 {slope, intercept}，非 CT 图像返回 null */
+    private static double[] linkRescale(ImagePlus img) {
+        DicomTagIndex tags = DicomTagIndex.of(img);
+        double[] rescale = tags != null ? ctRescale(img, tags) : null;
+        int slice = img.getCurrentSlice();
+        if (rescale == null || slice == 1) return rescale;
+        // 与 setupSliceRescale 相同：斜率取当前 slice，截距以第 1 个 slice 为基准
+        DicomTagIndex current = DicomTagIndex.forSlice(img, slice);
+        double intercept1 = tags.getDouble("0028,1052", 0.);
+        return new double[]{current.getDouble("0028,1053", rescale[0]),
+                rescale[1] + current.getDouble("0028,1052", intercept1) - intercept1};
+    }
+
+    private void showLinked(ImagePlus img, double min, double max, boolean preview) {
+        if (img.getWindow() == null) return;
+        img.setDisplayRange(min, max);
+        if (renderer.paint(img, preview ? previewLevel(img) : null)) deferCommit(img);
+        else img.updateAndDraw();
+    }
+
+    // -------------------- 逐 slice rescale --------------------
+    private double slopeOf(int slice) {
+        return sliceSlope != null && slice >= 1 && slice <= sliceSlope.length ? sliceSlope[slice - 1] : rescaleSlope;
+    }
+
+    private double interceptOf(int slice) {
+        return sliceIntercept != null && slice >= 1 && slice <= sliceIntercept.length ? sliceIntercept[slice - 1] : rescaleIntercept;
+    }
+
+    /** 记录显示范围对应的 HU 窗宽窗位 */
+    private void rememberWindow(ImagePlus imp, double min, double max) {
+        if (imp != impLast || !isCT) return;
+        int slice = imp.getCurrentSlice();
+        huWidth = (max - min) * slopeOf(slice);
+        huLevel = ((min + max) / 2 + getCoef0(imp)) * slopeOf(slice) + interceptOf(slice);
+        huValid = true;
+    }
+
+    /** 当前 HU 窗宽窗位在第 slice 个 slice 上的显示范围 {min, max} */
+    private double[] rangeOf(int slice) {
+        double width = huWidth / slopeOf(slice);
+        double level = (huLevel - interceptOf(slice)) / slopeOf(slice) - getCoef0(impLast);
+        return new double[]{level - width / 2, level + width / 2};
+    }
+
+    /** 读取每个 slice 的 rescale；全部与第 1 个 slice 相同时不保留 */
+    private void setupSliceRescale(ImagePlus imp) {
+        sliceSlope = sliceIntercept = null;
+        huValid = false;
+        lastSlice = 0;
+        int n = imp.getStackSize();
+        if (!isCT || n < 2 || imp.getBitDepth() != 16) return;
+        DicomTagIndex first = DicomTagIndex.forSlice(imp, 1);
+        double intercept1 = first.getDouble("0028,1052", 0.);
+        double[] slopes = new double[n], intercepts = new double[n];
+        boolean mixed = false;
+        for (int i = 1; i <= n; i++) {
+            DicomTagIndex tags = DicomTagIndex.forSlice(imp, i);
+            slopes[i - 1] = tags.getDouble("0028,1053", rescaleSlope);
+            // 截距以第 1 个 slice 为基准（第 1 个 slice 的截距可能已包含在图像标定中）
+            intercepts[i - 1] = rescaleIntercept + tags.getDouble("0028,1052", intercept1) - intercept1;
+            mixed |= slopes[i - 1] != rescaleSlope || intercepts[i - 1] != rescaleIntercept;
+        }
+        if (mixed) {
+            sliceSlope = slopes;
+            sliceIntercept = intercepts;
+        }
+    }
+
+    @Override
+    public void imageOpened(ImagePlus imp) {
+    }
+
+    @Override
+    public void imageClosed(ImagePlus imp) {
+        if (imp == impLast) lastSlice = 0;
+    }
 
-        imp.setDisplayRange(newMin, newMax);
-        if (RGB) imp.draw();
-        else imp.updateAndDraw();
+    /**
+     * 各 slice rescale 不同时，slice 变化后按该 slice 的 rescale 重新应用 HU 窗宽窗位。
+     * ImageJ 对新 slice 的重绘此时尚未执行，updateAndDraw 与之合并为一次重建。
+     */
+    @Override
+    public void imageUpdated(ImagePlus imp) {
+        if (imp != impLast) return;
+        int slice = imp.getCurrentSlice();
+        int before = lastSlice;
+        lastSlice = slice;
+        if (before == 0 || before == slice || RGB || sliceSlope == null || !huValid) return;
+        double[] range = rangeOf(slice);
+        imp.setDisplayRange(range[0], range[1]);
+        imp.updateAndDraw();
+    }
+
+    /** 注销监听器、停止计时器并丢弃缓存；被新实例替换时调用 */
+    private void dispose() {
+        ImagePlus.removeImageListener(this);
+        histograms.dispose();
+        commitTimer.stop();
+        scheduler.cancelAll();
+        uncommitted.clear();
+        impLast = null;
+    }
+
+    private PreviewPyramid.Level previewLevel(ImagePlus imp) {
+        java.awt.Rectangle src = imp.getCanvas() != null ? imp.getCanvas().getSrcRect() : null;
+        if (src == null || (long) src.width * src.height < PreviewPyramid.PREVIEW_PIXELS) return null;
+        return pyramid.get(imp);
+    }
+
+    /** LUT 预览之后由 ImageJ 按当前显示范围重建一次显示图像 */
+    private void commit() {
+        commitTimer.stop();
+        List<ImagePlus> images = new ArrayList<>(uncommitted);
+        uncommitted.clear();
+        for (ImagePlus imp : images)
+            if (imp.getWindow() != null) imp.updateAndDraw();
     }
 
     // -------------------- 菜单 --------------------
@@ -170,10 +413,29 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
         autoItem.addActionListener(this);
         popup1.add(autoItem);
 
+        autoStackItem = new MenuItem("Auto (whole stack)");
+        autoStackItem.addActionListener(this);
+        popup1.add(autoStackItem);
+
         resetItem = new MenuItem("Reset");
         resetItem.addActionListener(this);
         popup1.add(resetItem);
 
+        MenuItem metricsItem = new MenuItem("Show Metrics");
+        metricsItem.addActionListener(this);
+        popup1.add(metricsItem);
+
+        linkItem = new CheckboxMenuItem("Link all open images", linked);
+        linkItem.addItemListener(e -> linked = linkItem.getState());
+        popup1.add(linkItem);
+
+        sampleItem = new CheckboxMenuItem("Sample large stacks (whole-stack Auto)", sampleStack);
+        sampleItem.addItemListener(e -> {
+            sampleStack = sampleItem.getState();
+            autoThreshold = 0;
+        });
+        popup1.add(sampleItem);
+
         popup1.addSeparator();
 
         for (CtWindowPreset preset : CtWindowPreset.values()) {
@@ -189,9 +451,13 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
     public void actionPerformed(ActionEvent e) {
         String cmd = e.getActionCommand();
         if ("Auto".equals(cmd))
-            autoItemActionPerformed(e);
+            autoItemActionPerformed(e, false);
+        else if ("Auto (whole stack)".equals(cmd))
+            autoItemActionPerformed(e, true);
         else if ("Reset".equals(cmd))
             resetItemActionPerformed(e);
+        else if ("Show Metrics".equals(cmd))
+            Metrics.show();
         else
             maybeSetCt(cmd);
     }
@@ -200,8 +466,9 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
         if (imp == null) return;
         if (fullSetup) {
             RGB = imp.getType() == ImagePlus.COLOR_RGB;
-            currentMin = imp.getDisplayRangeMin();
-            currentMax = imp.getDisplayRangeMax();
+            double[] range = RGB ? rgb.range(imp) : new double[]{imp.getDisplayRangeMin(), imp.getDisplayRangeMax()};
+            currentMin = range[0];
+            currentMax = range[1];
         }
         boolean currType = isCTImage(imp);
         if (currType != isCT) {
@@ -209,32 +476,34 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
             popup1 = null;
         }
         isCT = currType;
-        if (RGB) imp.getProcessor().snapshot();
+        setupSliceRescale(imp);
         autoThreshold = 0;
         impLast = imp;
     }
 
-    private void autoItemActionPerformed(ActionEvent evt) {
+    /** wholeStack 为 true 时使用整个 stack 的直方图，否则为当前 slice（与 ROI） */
+    private void autoItemActionPerformed(ActionEvent evt, boolean wholeStack) {
         if (impLast == null || !impLast.isVisible()) return;
         int depth = impLast.getBitDepth();
         if (depth != 16 && depth != 32) {
             resetItemActionPerformed(evt);
             return;
         }
-        Calibration cal = impLast.getCalibration();
-        impLast.setCalibration(null);
-        ImageStatistics stat1 = impLast.getStatistics();
-        impLast.setCalibration(cal);
+        if (wholeStack != autoWholeStack) autoThreshold = 0;
+        autoWholeStack = wholeStack;
+        // 直方图按 (图像, slice, ROI) 缓存，重复点击 Auto 不再遍历像素
+        HistogramCache.Histogram stat1 = wholeStack ? histograms.getStack(impLast, sampleStack) : histograms.get(impLast);
+        if (stat1 == null) return;
 
-        int limit = stat1.pixelCount / 10;
+        long limit = stat1.pixelCount / 10;
         int[] histogram = stat1.histogram;
         if (autoThreshold < 10) autoThreshold = AUTO_THRESHOLD;
         else autoThreshold /= 2;
-        int threshold = stat1.pixelCount / autoThreshold;
+        long threshold = stat1.pixelCount / autoThreshold;
 
         int i = -1;
         boolean found;
-        int count;
+        long count;
         do { i++; count = histogram[i]; if(count>limit) count=0; found=count>threshold; } while (!found && i<255);
         int hmin = i;
         i = 256;
@@ -254,18 +523,19 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
 
     private void resetItemActionPerformed(ActionEvent evt) {
         if (impLast == null || !impLast.isVisible()) return;
-        impLast.resetDisplayRange();
-        currentMin = impLast.getDisplayRangeMin();
-        currentMax = impLast.getDisplayRangeMax();
+        scheduler.cancel(impLast);
         autoThreshold = 0;
         if (RGB) {
-            impLast.getProcessor().reset();
+            rgb.reset(impLast);
             currentMin = 0;
             currentMax = 255;
-            impLast.setDisplayRange(currentMin, currentMax);
             impLast.draw();
-        } else
-            adjustWindowLevel(impLast, 0, 0);
+            return;
+        }
+        impLast.resetDisplayRange();
+        currentMin = impLast.getDisplayRangeMin();
+        currentMax = impLast.getDisplayRangeMax();
+        adjustWindowLevel(impLast, 0, 0);
     }
 
     private void maybeSetCt(String cmd) {
@@ -281,26 +551,28 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
             }
         }
         if (preset == null) return;
+        scheduler.cancel(impLast);
 
         // 获取窗位和窗宽
         double level1 = preset.level;
         double width1 = preset.width;
 
-        // 转换为像素空间（考虑 DICOM Slope / Intercept）
-        width1 = width1 / rescaleSlope;
-        level1 = (level1 - rescaleIntercept) / rescaleSlope;
+        // 转换为像素空间（考虑当前 slice 的 DICOM Slope / Intercept）
+        int slice = impLast.getCurrentSlice();
+        width1 = width1 / slopeOf(slice);
+        level1 = (level1 - interceptOf(slice)) / slopeOf(slice);
         level1 -= getCoef0(impLast);
 
         // 计算最终显示范围
         currentMin = level1 - width1 / 2;
         currentMax = level1 + width1 / 2;
 
-        // 应用到图像
-        impLast.setDisplayRange(currentMin, currentMax);
-        impLast.updateAndDraw();
+        // 应用到图像（LUT 已缓存时预设切换几乎无延迟）
+        applyDisplayRange(impLast, currentMin, currentMax, false);
+        propagate(impLast, currentMin, currentMax, false);
     }
 
-    private double getCoef0(ImagePlus img) {
+    private static double getCoef0(ImagePlus img) {
         double[] coef = img.getCalibration().getCoefficients();
         double retVal = 0.;
         if (coef != null) retVal = coef[0];
@@ -310,53 +582,31 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
     private boolean isCTImage(ImagePlus img) {
         rescaleIntercept = 0;
         rescaleSlope = 1.0;
-        ctImgLevel = 56;
-        ctImgWidth = 340;
-        String meta = img.getStack().getSliceLabel(1);
-        if (meta == null || !meta.contains("0010,0010")) meta = (String) img.getProperty("Info");
-        if (meta == null) return false;
-
-        String val1 = getDicomValue(meta, "0008,0016");
-        if (val1 == null) return false;
-        if (val1.startsWith("1.2.840.10008.5.1.4.1.1.20")) return false;
-        if (val1.startsWith("1.2.840.10008.5.1.4.1.1.2")) {
-            if (getCoef0(img) == 0.) {
-                val1 = getDicomValue(meta, "0028,1052");
-                rescaleIntercept = parseDouble(val1, 0.);
-            }
-            val1 = getDicomValue(meta, "0028,1053");
-            rescaleSlope = parseDouble(val1, 1.0);
-            val1 = getDicomValue(meta, "0028,1050");
-            ctImgLevel = parseDouble(val1, ctImgLevel);
-            val1 = getDicomValue(meta, "0028,1051");
-            ctImgWidth = parseDouble(val1, ctImgWidth);
-            String manufacturer = getDicomValue(meta, "0008,1090");
-            if ("VARICAM".equals(manufacturer) || "INFINIA".equals(manufacturer) || "QUASAR".equals(manufacturer)) {
-                rescaleIntercept = -1000.;
-                ctImgLevel += rescaleIntercept;
-            }
-            return true;
-        }
-        return false;
+        // 标签索引按图像缓存，切换图像时不再逐个 indexOf 扫描整段元数据
+        DicomTagIndex tags = DicomTagIndex.of(img);
+        if (tags == null) return false;
+
+        double[] rescale = ctRescale(img, tags);
+        if (rescale == null) return false;
+        rescaleSlope = rescale[0];
+        rescaleIntercept = rescale[1];
+        return true;
     }
 
-    double parseDouble(String tmp1, double defaultValue) {
-        try {
-            return (tmp1 != null && !tmp1.isEmpty()) ? Double.parseDouble(tmp1) : defaultValue;
-        } catch (Exception e) { return defaultValue; }
+    /** CT 图像的 {slope, intercept}（HU = (v + coef0) * slope + intercept），非 CT 返回 null */
+    private static double[] ctRescale(ImagePlus img, DicomTagIndex tags) {
+        String val1 = tags.get("0008,0016");
+        if (val1 == null) return null;
+        if (val1.startsWith("1.2.840.10008.5.1.4.1.1.20")) return null;
+        if (!val1.startsWith("1.2.840.10008.5.1.4.1.1.2")) return null;
+        double intercept = getCoef0(img) == 0. ? tags.getDouble("0028,1052", 0.) : 0.;
+        double slope = tags.getDouble("0028,1053", 1.0);
+        if (isNmManufacturer(tags.get("0008,1090"))) intercept = -1000.;
+        return new double[]{slope, intercept};
     }
 
-    private String getDicomValue(String meta, String key1) {
-        if (meta == null) return null;
-        int k0 = meta.indexOf(key1);
-        if (k0 < 0) return null;
-        int k1 = meta.indexOf("\n", k0);
-        if (k1 < 0) return null;
-        String tmp1 = meta.substring(k0, k1);
-        k1 = tmp1.indexOf(": ");
-        if (k1 > 0) tmp1 = tmp1.substring(k1 + 2);
-        String ret1 = tmp1.trim();
-        return ret1.isEmpty() ? null : ret1;
+    private static boolean isNmManufacturer(String manufacturer) {
+        return "VARICAM".equals(manufacturer) || "INFINIA".equals(manufacturer) || "QUASAR".equals(manufacturer);
     }
 
     @Override
@@ -367,7 +617,7 @@ public final class WindowLevel_Tool extends PlugInTool implements ActionListener
 
     public static void main(String[] args) {
         new ImageJ();
-        Toolbar.addPlugInTool(new WindowLevel_Tool());
+        new WindowLevel_Tool(); // 构造时已加入工具栏
         Toolbar.getInstance().setTool("Window Level Tool (right click for Reset, Auto)");
         ImagePlus imp = IJ.openImage("http://imagej.net/images/boats.gif");
         imp.show();
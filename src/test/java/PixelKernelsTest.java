@@ -0,0 +1,105 @@
+import ij.io.FileInfo;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Known values of the single-pass conversion for each output type: half-up rounding,
+ * saturation, NaN, slope/intercept rescale and the legacy 16-bit signed offset.
+ */
+public class PixelKernelsTest {
+
+    private static final float NaN = Float.NaN;
+
+    @Test
+    public void signed16KeepsLegacyOffset() throws Exception {
+        short[] in = {0, 1, (short) 32768, (short) 65535};
+        assertArrayEquals(new short[]{-32768, -32767, 0, 32767}, shorts(encode(in, FileInfo.GRAY16_SIGNED)));
+        // 只有 16-bit 源才减去 32768
+        assertArrayEquals(new short[]{0, 200}, shorts(encode(new byte[]{0, (byte) 200}, FileInfo.GRAY16_SIGNED)));
+    }
+
+    @Test
+    public void unsigned16IsUnchanged() throws Exception {
+        short[] in = {0, 1, (short) 32768, (short) 65535};
+        assertArrayEquals(in, shorts(encode(in, FileInfo.GRAY16_UNSIGNED)));
+    }
+
+    @Test
+    public void roundsHalfUpAndSaturates() throws Exception {
+        float[] in = {1.5f, 2.5f, -0.5f, -1.5f, 0.49f, 40000, -40000, NaN};
+        assertArrayEquals(new short[]{2, 3, 0, -1, 0, 32767, -32768, 0}, shorts(encode(in, FileInfo.GRAY16_SIGNED)));
+        assertArrayEquals(new short[]{2, 3, 0, 0, 0, (short) 40000, 0, 0}, shorts(encode(in, FileInfo.GRAY16_UNSIGNED)));
+
+        float[] wide = {2.5f, 5e9f, -3e9f, NaN};
+        assertArrayEquals(new int[]{3, Integer.MAX_VALUE, Integer.MIN_VALUE, 0}, ints(encode(wide, FileInfo.GRAY32_INT)));
+        assertArrayEquals(new int[]{3, -1, 0, 0}, ints(encode(wide, FileInfo.GRAY32_UNSIGNED))); // -1 即 0xffffffff
+        assertArrayEquals(new short[]{0, (short) 65535}, shorts(encode(new float[]{-3, 70000}, FileInfo.GRAY16_UNSIGNED)));
+    }
+
+    @Test
+    public void floatTargetsKeepValues() throws Exception {
+        float[] in = {0.25f, -7.5f, NaN};
+        ByteBuffer out = encode(in, FileInfo.GRAY32_FLOAT);
+        assertEquals(0.25f, out.getFloat(), 0);
+        assertEquals(-7.5f, out.getFloat(), 0);
+        assertEquals(NaN, out.getFloat(), 0);
+        out = encode(new short[]{(short) 65535}, FileInfo.GRAY64_FLOAT);
+        assertEquals(65535, out.getDouble(), 0);
+    }
+
+    @Test
+    public void appliesRescale() throws Exception {
+        // HU = v * 0.5 - 1024：2049 → 0.5 → 1；rescale 时不再减去 32768
+        short[] in = {0, 2049, 2047, (short) 65535};
+        assertArrayEquals(new short[]{-1024, 1, 0, 31744}, shorts(encode(in, FileInfo.GRAY16_SIGNED, 0.5, -1024)));
+        // 整数路径（slope = 1）同样饱和
+        assertArrayEquals(new short[]{100, (short) 65535}, shorts(encode(new short[]{0, (short) 65500}, FileInfo.GRAY16_UNSIGNED, 1, 100)));
+        ByteBuffer out = encode(new short[]{100}, FileInfo.GRAY32_FLOAT, 2, -1);
+        assertEquals(199f, out.getFloat(), 0);
+        out = encode(new byte[]{(byte) 255}, FileInfo.GRAY64_FLOAT, 0.1, 1);
+        assertEquals(26.5, out.getDouble(), 1e-12);
+    }
+
+    @Test
+    public void convertsAcrossBlocks() throws Exception {
+        int n = 2 * PixelKernels.BLOCK + 5;
+        float[] in = new float[n];
+        int[] expected = new int[n];
+        for (int i = 0; i < n; i++) {
+            in[i] = i + 0.5f;
+            expected[i] = i + 1;
+        }
+        assertArrayEquals(expected, ints(encode(in, FileInfo.GRAY32_INT)));
+    }
+
+    /** pixels 整行按 fileType 编码（little-endian）；rescale 为 {slope, intercept} */
+    private static ByteBuffer encode(Object pixels, int fileType, double... rescale) throws IOException {
+        FileInfo fi = new FileInfo();
+        fi.fileType = fileType;
+        fi.width = Array.getLength(pixels);
+        fi.height = 1;
+        if (rescale.length == 2) SaveWithHeader_.setRescale(fi, rescale[0], rescale[1]);
+        ByteBuffer dst = ByteBuffer.allocate(fi.width * fi.getBytesPerPixel()).order(ByteOrder.LITTLE_ENDIAN);
+        PixelKernels.encode(pixels, fi, 0, fi.width, dst);
+        return dst;
+    }
+
+    private static short[] shorts(ByteBuffer buffer) {
+        short[] values = new short[buffer.remaining() / 2];
+        buffer.asShortBuffer().get(values);
+        return values;
+    }
+
+    private static int[] ints(ByteBuffer buffer) {
+        int[] values = new int[buffer.remaining() / 4];
+        buffer.asIntBuffer().get(values);
+        return values;
+    }
+}
@@ -0,0 +1,238 @@
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import ij.process.ShortProcessor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CancellationException;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Each write mode must produce exactly the bytes of the streaming RawStackWriter.
+ */
+public class StackWriterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void parallelMatchesStreaming() throws Exception {
+        ImagePlus imp = randomStack(67, 43, 9);
+        RawHeader header = header(300, 7);
+        for (String type : SaveWithHeader_.types) {
+            FileInfo fi = SaveWithHeader_.exportInfo(imp, SaveWithHeader_.fileTypeOf(type), header);
+            byte[] expected = write(new RawStackWriter(fi, imp.getStack()), header, "ref.raw");
+            // 3 个线程：单核上也会乱序完成，检查按顺序写出
+            byte[] actual = write(new ParallelStackWriter(fi, imp.getStack(), 3), header, "parallel.raw");
+            assertArrayEquals(type, expected, actual);
+        }
+    }
+
+    @Test
+    public void mappedMatchesStreaming() throws Exception {
+        ImagePlus imp = randomStack(67, 43, 9);
+        RawHeader header = header(300, 7);
+        for (String type : SaveWithHeader_.types) {
+            FileInfo fi = SaveWithHeader_.exportInfo(imp, SaveWithHeader_.fileTypeOf(type), header);
+            byte[] expected = write(new RawStackWriter(fi, imp.getStack()), header, "ref.raw");
+            assertArrayEquals(type, expected, write(new MappedStackWriter(fi, imp.getStack()), header, type + ".raw"));
+            // 覆盖更大的旧文件时截断到新长度
+            Files.write(folder.getRoot().toPath().resolve("mapped.raw"), new byte[expected.length * 2]);
+            assertArrayEquals(type, expected, write(new MappedStackWriter(fi, imp.getStack()), header, "mapped.raw"));
+        }
+    }
+
+    @Test
+    public void gzipMembersDecompressToRaw() throws Exception {
+        // 32-bit float 的一个 slice 超过 BLOCK_BYTES，分成两个 member
+        ImagePlus imp = randomStack(1100, 1000, 3);
+        RawHeader header = header(1000, 5);
+        FileInfo fi = SaveWithHeader_.exportInfo(imp, FileInfo.GRAY32_FLOAT, header);
+        byte[] expected = write(new RawStackWriter(fi, imp.getStack()), header, "ref.raw");
+        byte[] gz = write(new GzipStackWriter(fi, imp.getStack(), 3), header, "out.raw.gz");
+
+        // 每个 member 都是完整的 gzip 流，自带 CRC32 与长度
+        ByteBuffer in = ByteBuffer.wrap(gz).order(ByteOrder.LITTLE_ENDIAN);
+        ByteArrayOutputStream joined = new ByteArrayOutputStream();
+        int members = 0;
+        while (in.hasRemaining()) {
+            joined.write(inflateMember(in));
+            members++;
+        }
+        assertEquals(1 + 2 * 3, members);
+        assertArrayEquals(expected, joined.toByteArray());
+        assertArrayEquals(expected, gunzip(gz));
+    }
+
+    @Test
+    public void roiExportMatchesCrop() throws Exception {
+        ImagePlus imp = randomStack(97, 61, 7);
+        RawHeader header = header(100, 3);
+        // 整行（连续拷贝）、内部矩形、右下角单个像素
+        Rectangle[] rois = {new Rectangle(0, 10, 97, 20), new Rectangle(13, 7, 40, 33), new Rectangle(96, 60, 1, 1)};
+        for (Rectangle r : rois) {
+            imp.setRoi(r);
+            ExportRegion region = ExportRegion.of(imp, true, 2, 6);
+            ImagePlus crop = new ImagePlus("crop", imp.getStack().crop(r.x, r.y, 1, r.width, r.height, 5));
+            for (int type : new int[]{FileInfo.GRAY16_SIGNED, FileInfo.GRAY64_FLOAT}) {
+                FileInfo fi = SaveWithHeader_.exportInfo(imp, type, header, region);
+                FileInfo fc = SaveWithHeader_.exportInfo(crop, type, header);
+                byte[] expected = write(new RawStackWriter(fc, crop.getStack()), header, "crop.raw");
+                ImageStack stack = imp.getStack();
+                String what = r + ", type " + type;
+                assertArrayEquals(what, expected, write(new RawStackWriter(fi, stack, region), header, "raw.raw"));
+                assertArrayEquals(what, expected, write(new ParallelStackWriter(fi, stack, region, 3), header, "parallel.raw"));
+                assertArrayEquals(what, expected, write(new MappedStackWriter(fi, stack, region), header, "mapped.raw"));
+                assertArrayEquals(what, expected, gunzip(write(new GzipStackWriter(fi, stack, region, 3), header, "gzip.raw.gz")));
+            }
+        }
+    }
+
+    @Test
+    public void incrementalRewritesOnlyChangedSlices() throws Exception {
+        ImagePlus imp = randomStack(64, 48, 8);
+        RawHeader header = header(256, 1);
+        FileInfo fi = SaveWithHeader_.exportInfo(imp, FileInfo.GRAY16_SIGNED, header);
+        long sliceBytes = RawStackWriter.sliceBytes(fi);
+        Path target = folder.getRoot().toPath().resolve("inc.raw");
+        Files.write(target, new byte[(int) (256 + 8 * sliceBytes) * 2]); // 旧的较大文件
+
+        assertEquals(256 + 8 * sliceBytes, saveIncremental(fi, imp, header, target));
+        assertEquals(0, saveIncremental(fi, imp, header, target));
+        ((short[]) imp.getStack().getPixels(2))[0] ^= 1;
+        ((short[]) imp.getStack().getPixels(5))[0] ^= 1;
+        assertEquals(2 * sliceBytes, saveIncremental(fi, imp, header, target));
+        header = header(256, 2);
+        assertEquals(256, saveIncremental(fi, imp, header, target));
+        assertArrayEquals(write(new RawStackWriter(fi, imp.getStack()), header, "ref.raw"), Files.readAllBytes(target));
+
+        // 文件在别处被改动：记录失效，整体重写
+        Files.setLastModifiedTime(target, FileTime.fromMillis(Files.getLastModifiedTime(target).toMillis() - 60000));
+        assertEquals(256 + 8 * sliceBytes, saveIncremental(fi, imp, header, target));
+    }
+
+    @Test
+    public void incrementalRecoversAfterFailedWrite() throws Exception {
+        ImagePlus imp = randomStack(64, 48, 8);
+        RawHeader header = header(256, 1);
+        FileInfo fi = SaveWithHeader_.exportInfo(imp, FileInfo.GRAY16_SIGNED, header);
+        long sliceBytes = RawStackWriter.sliceBytes(fi);
+        Path target = folder.getRoot().toPath().resolve("inc.raw");
+        saveIncremental(fi, imp, header, target);
+
+        // 写到第 3 个 slice 后失败：丢弃记录，下次整体重写
+        for (int s = 1; s <= 8; s++) ((short[]) imp.getStack().getPixels(s))[0] ^= 1;
+        try {
+            new IncrementalStackWriter(fi, imp.getStack()).write(header, target, slice -> {
+                if (slice == 3) throw new IllegalStateException("disk gone");
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(256 + 8 * sliceBytes, saveIncremental(fi, imp, header, target));
+
+        // 在第 3 个 slice 后取消：保留已写部分的记录，下次只写其余有变化的 slice
+        for (int s = 1; s <= 8; s++) ((short[]) imp.getStack().getPixels(s))[0] ^= 1;
+        try {
+            new IncrementalStackWriter(fi, imp.getStack()).write(header, target, slice -> {
+                if (slice == 3) throw new CancellationException();
+            });
+            fail();
+        } catch (CancellationException expected) {
+        }
+        assertEquals(5 * sliceBytes, saveIncremental(fi, imp, header, target));
+        assertArrayEquals(write(new RawStackWriter(fi, imp.getStack()), header, "ref.raw"), Files.readAllBytes(target));
+    }
+
+    /** 经 Metrics 包装写出，返回实际写出的字节数 */
+    private static long saveIncremental(FileInfo fi, ImagePlus imp, RawHeader header, Path target) throws IOException {
+        StackWriter writer = Metrics.measured(new IncrementalStackWriter(fi, imp.getStack()),
+                fi.getOffset() + RawStackWriter.sliceBytes(fi) * fi.nImages);
+        writer.write(header, target, slice -> {
+        });
+        return writer.bytesWritten();
+    }
+
+    private static ImagePlus randomStack(int width, int height, int slices) {
+        Random random = new Random(width * 31L + height);
+        ImageStack stack = new ImageStack(width, height);
+        for (int s = 0; s < slices; s++) {
+            short[] pixels = new short[width * height];
+            for (int i = 0; i < pixels.length; i++) pixels[i] = (short) random.nextInt(65536);
+            stack.addSlice(new ShortProcessor(width, height, pixels, null));
+        }
+        return new ImagePlus("test", stack);
+    }
+
+    private RawHeader header(int length, int fill) throws IOException {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) fill);
+        Path file = Files.write(folder.getRoot().toPath().resolve("header-" + fill + ".bin"), bytes);
+        return RawHeader.ofFile(file.toFile(), length);
+    }
+
+    private byte[] write(StackWriter writer, RawHeader header, String name) throws IOException {
+        Path target = folder.getRoot().toPath().resolve(name);
+        writer.write(header, target, slice -> {
+        });
+        return Files.readAllBytes(target);
+    }
+
+    private static byte[] gunzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+            byte[] buffer = new byte[1 << 16];
+            for (int n; (n = in.read(buffer)) > 0; ) out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /** in 当前位置的一个 gzip member（GzipStackWriter 不写 FNAME 等可选字段），校验 CRC32 与 ISIZE */
+    private static byte[] inflateMember(ByteBuffer in) throws Exception {
+        assertEquals(0x8b1f, in.getShort() & 0xffff); // ID1 ID2（little-endian 读取）
+        assertEquals(8, in.get());
+        assertEquals(0, in.get());
+        in.position(in.position() + 6);
+        Inflater inflater = new Inflater(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            inflater.setInput(in.array(), in.position(), in.remaining());
+            byte[] buffer = new byte[1 << 16];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) throw new EOFException("truncated member");
+                out.write(buffer, 0, n);
+            }
+            in.position(in.limit() - inflater.getRemaining());
+        } finally {
+            inflater.end();
+        }
+        byte[] data = out.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        assertEquals(crc.getValue(), in.getInt() & 0xffffffffL);
+        assertEquals(data.length, in.getInt());
+        return data;
+    }
+}
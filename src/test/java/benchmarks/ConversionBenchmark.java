@@ -0,0 +1,80 @@
+package benchmarks;
+
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SaveWithHeader_ pixel conversion (PixelKernels.encode) of one 16-bit slice into a direct buffer,
+ * per output type, with and without a rescale. The "mb" counter is the output throughput in MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ConversionBenchmark {
+
+    @Param({"16-bit signed", "16-bit unsigned", "32-bit signed", "32-bit float", "64-bit float"})
+    public String type;
+
+    @Param({"false", "true"})
+    public boolean rescale;
+
+    @Param({"1024"})
+    public int size;
+
+    private short[] pixels;
+    private FileInfo fi;
+    private ByteBuffer dst;
+    private MethodHandle encode;
+
+    /** 输出字节数，按秒报告即为 MB/s */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double mb;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        pixels = Synthetic.slice(size, size, 1);
+        MethodHandle fileTypeOf = Plugins.method("SaveWithHeader_", "fileTypeOf", String.class);
+        fi = new FileInfo();
+        fi.width = fi.height = size;
+        fi.nImages = 1;
+        fi.intelByteOrder = true;
+        fi.fileType = (int) fileTypeOf.invoke(type);
+        if (rescale) {
+            fi.calibrationFunction = Calibration.STRAIGHT_LINE;
+            fi.coefficients = new double[]{-1024, 1.0};
+        }
+        dst = ByteBuffer.allocateDirect(pixels.length * fi.getBytesPerPixel()).order(ByteOrder.LITTLE_ENDIAN);
+        encode = Plugins.method("PixelKernels", "encode", Object.class, FileInfo.class, int.class, int.class, ByteBuffer.class);
+    }
+
+    @Benchmark
+    public ByteBuffer encode(Bytes bytes) throws Throwable {
+        encode.invoke((Object) pixels, fi, 0, pixels.length, dst);
+        bytes.mb += dst.remaining() / 1e6;
+        return dst;
+    }
+}
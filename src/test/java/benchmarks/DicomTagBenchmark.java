@@ -0,0 +1,85 @@
+package benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DICOM tag lookup as done by WindowLevel_Tool when it sets up an image: the six tags isCTImage
+ * reads, via repeated indexOf over the header text (the former getDicomValue), via a fresh
+ * DicomTagIndex parse, and via the cached per-image index.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class DicomTagBenchmark {
+
+    static final String[] TAGS = {"0008,0016", "0028,1052", "0028,1053", "0028,1050", "0028,1051", "0008,1090"};
+
+    @Param({"200", "2000"})
+    public int lines;
+
+    private String meta;
+    private ImagePlus imp;
+    private MethodHandle parse, of, get;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        meta = Synthetic.dicomHeader(lines);
+        ImageStack stack = new ImageStack(16, 16);
+        stack.addSlice(meta, new ShortProcessor(16, 16));
+        imp = new ImagePlus("dicom", stack);
+        parse = Plugins.method("DicomTagIndex", "parse", String.class);
+        of = Plugins.method("DicomTagIndex", "of", ImagePlus.class);
+        get = Plugins.method("DicomTagIndex", "get", String.class);
+    }
+
+    @Benchmark
+    public void indexOf(Blackhole bh) {
+        for (String tag : TAGS) bh.consume(indexOf(meta, tag));
+    }
+
+    @Benchmark
+    public void parseAndGet(Blackhole bh) throws Throwable {
+        Object index = parse.invoke(meta);
+        for (String tag : TAGS) bh.consume((String) get.invoke(index, tag));
+    }
+
+    @Benchmark
+    public void cachedIndex(Blackhole bh) throws Throwable {
+        Object index = of.invoke(imp);
+        for (String tag : TAGS) bh.consume((String) get.invoke(index, tag));
+    }
+
+    /** 原 WindowLevel_Tool.getDicomValue */
+    private static String indexOf(String meta, String key) {
+        int k0 = meta.indexOf(key);
+        if (k0 < 0) return null;
+        int k1 = meta.indexOf("\n", k0);
+        if (k1 < 0) return null;
+        String tmp = meta.substring(k0, k1);
+        k1 = tmp.indexOf(": ");
+        if (k1 > 0) tmp = tmp.substring(k1 + 2);
+        String ret = tmp.trim();
+        return ret.isEmpty() ? null : ret;
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import ij.ImagePlus;
+import ij.measure.Calibration;
+import ij.process.ImageStatistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histogram work behind WindowLevel_Tool's Auto: uncached ImageStatistics of one slice (what every
+ * Auto click used to cost), a HistogramCache hit (fingerprint check only), and the fork-join
+ * whole-stack histogram of "Auto (whole stack)", sampled and at full resolution. Times are per call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class HistogramBenchmark {
+
+    @Param({"512"})
+    public int size;
+
+    @Param({"100"})
+    public int slices;
+
+    private ImagePlus imp;
+    private Object cache;
+    private MethodHandle get, stack;
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        imp = Synthetic.stack(size, size, slices);
+        imp.setSlice(slices / 2);
+        cache = Plugins.constructor("HistogramCache").invoke();
+        get = Plugins.method("HistogramCache", "get", ImagePlus.class);
+        stack = Plugins.method("StackHistogram", "of", ImagePlus.class, boolean.class);
+    }
+
+    @Benchmark
+    public ImageStatistics sliceUncached() {
+        Calibration cal = imp.getCalibration();
+        imp.setCalibration(null);
+        ImageStatistics stats = imp.getStatistics();
+        imp.setCalibration(cal);
+        return stats;
+    }
+
+    @Benchmark
+    public Object sliceCached() throws Throwable {
+        return get.invoke(cache, imp);
+    }
+
+    @Benchmark
+    public Object wholeStack() throws Throwable {
+        return stack.invoke(imp, true);
+    }
+
+    @Benchmark
+    public Object wholeStackFull() throws Throwable {
+        return stack.invoke(imp, false);
+    }
+}
@@ -0,0 +1,120 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.awt.Rectangle;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WindowLevel_Tool display-range rendering of one slice, without a display: the 16-bit LUT path
+ * with a cached LUT (drag over a known range) and with a new LUT per frame, a drag preview from
+ * the 1/4 pyramid level, and the RGB channel-LUT path. The "mpix" counter is megapixels per second.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class RenderBenchmark {
+
+    @Param({"512", "2048"})
+    public int size;
+
+    private short[] pixels;
+    private int[] rgb, rgbOut;
+    private int[] red = new int[256], green = new int[256], blue = new int[256];
+    private byte[] out;
+    private Rectangle full, preview;
+    private Object luts, level;
+    private short[] levelPixels;
+    private int levelWidth;
+    private int frame;
+    private MethodHandle lut, build, map, rgbMap;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Pixels {
+        public double mpix;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        pixels = Synthetic.slice(size, size, 1);
+        out = new byte[size * size];
+        full = new Rectangle(0, 0, size, size);
+        luts = Plugins.constructor("LutRenderer").invoke();
+        lut = Plugins.method("LutRenderer", "lut", int.class, int.class);
+        build = Plugins.method("LutRenderer", "build", byte[].class, int.class, int.class);
+        map = Plugins.method("LutRenderer", "map", short[].class, int.class, Rectangle.class, byte[].class, byte[].class);
+
+        level = Plugins.method("PreviewPyramid", "downsample", short[].class, int.class, int.class).invoke(pixels, size, size);
+        levelPixels = (short[]) Plugins.field(level, "pixels");
+        levelWidth = (int) Plugins.field(level, "width");
+        preview = new Rectangle(0, 0, levelWidth, levelPixels.length / levelWidth);
+
+        rgb = new int[size * size];
+        for (int i = 0; i < rgb.length; i++) {
+            int v = (pixels[i] >> 4) & 0xff;
+            rgb[i] = 0xff000000 | v << 16 | (255 - v) << 8 | v / 2;
+        }
+        rgbOut = new int[rgb.length];
+        Plugins.method("RgbRenderer", "build", int[].class, double.class, double.class).invoke(blue, 20.0, 220.0);
+        for (int v = 0; v < 256; v++) {
+            green[v] = blue[v] << 8;
+            red[v] = blue[v] << 16;
+        }
+        rgbMap = Plugins.method("RgbRenderer", "map", int[].class, int[].class, int[].class, int[].class, int[].class);
+    }
+
+    /** 拖动时在少数几个范围之间往复，LUT 命中缓存 */
+    @Benchmark
+    public byte[] cachedLut(Pixels counter) throws Throwable {
+        int min = 900 + (frame++ & 7);
+        byte[] table = (byte[]) lut.invoke(luts, min, min + 400);
+        map.invoke(pixels, size, full, table, out);
+        counter.mpix += size * size / 1e6;
+        return out;
+    }
+
+    /** 每帧重建 LUT（65536 项）再映射 */
+    @Benchmark
+    public byte[] newLut(Pixels counter) throws Throwable {
+        byte[] table = new byte[65536];
+        int min = 900 + (frame++ & 255);
+        build.invoke(table, min, min + 400);
+        map.invoke(pixels, size, full, table, out);
+        counter.mpix += size * size / 1e6;
+        return out;
+    }
+
+    /** 由 1/4 降采样层预览，按原图像素数计数 */
+    @Benchmark
+    public byte[] pyramidPreview(Pixels counter) throws Throwable {
+        int min = 900 + (frame++ & 7);
+        byte[] table = (byte[]) lut.invoke(luts, min, min + 400);
+        map.invoke(levelPixels, levelWidth, preview, table, out);
+        counter.mpix += size * size / 1e6;
+        return out;
+    }
+
+    @Benchmark
+    public int[] rgb(Pixels counter) throws Throwable {
+        rgbMap.invoke(rgb, rgbOut, red, green, blue);
+        counter.mpix += size * size / 1e6;
+        return rgbOut;
+    }
+}
@@ -0,0 +1,55 @@
+package benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.ShortProcessor;
+
+import java.util.Random;
+
+/**
+ * Synthetic CT-like data: 16-bit slices with a smooth body-like profile plus noise
+ * (values around the usual 0..4095 range, air outside), and a DICOM header text.
+ */
+final class Synthetic {
+
+    private Synthetic() {
+    }
+
+    static short[] slice(int width, int height, long seed) {
+        Random random = new Random(seed);
+        short[] pixels = new short[width * height];
+        double cx = width / 2.0, cy = height / 2.0, r = Math.min(width, height) * 0.4;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                double d = Math.hypot(x - cx, y - cy) / r;
+                double v = d < 1 ? 1040 + 200 * Math.cos(d * 7) : 24;
+                pixels[y * width + x] = (short) Math.max(0, Math.min(4095, v + random.nextGaussian() * 20));
+            }
+        }
+        return pixels;
+    }
+
+    static ImagePlus stack(int width, int height, int slices) {
+        ImageStack stack = new ImageStack(width, height);
+        for (int s = 0; s < slices; s++) stack.addSlice(new ShortProcessor(width, height, slice(width, height, s), null));
+        return new ImagePlus("synthetic", stack);
+    }
+
+    /** 与 ImageJ DICOM 读取器格式相同的头文本，共约 lines 行 */
+    static String dicomHeader(int lines) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("0002,0010  Transfer Syntax UID: 1.2.840.10008.1.2.1\n");
+        sb.append("0008,0016  SOP Class UID: 1.2.840.10008.5.1.4.1.1.2\n");
+        sb.append("0008,0060  Modality: CT\n");
+        sb.append("0008,1090  Manufacturers Model Name: Synthetic\n");
+        sb.append("0010,0010  Patient's Name: Benchmark\n");
+        for (int i = 0; i < lines - 10; i++)
+            sb.append(String.format("%04X,%04X  Private Tag: value %d\n", 0x0019 + 2 * (i / 256), i % 256, i));
+        sb.append("0028,1050  Window Center: 40\\400\n");
+        sb.append("0028,1051  Window Width: 400\\1500\n");
+        sb.append("0028,1052  Rescale Intercept: -1024\n");
+        sb.append("0028,1053  Rescale Slope: 1\n");
+        sb.append("7FE0,0010  Pixel Data: 524288\n");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,100 @@
+package benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.io.FileInfo;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Whole-stack export of SaveWithHeader_ (header + converted slices to a temporary file) per write
+ * mode and output type. The "mb" counter is the written throughput in MB/s; the numbers include
+ * the file system, so compare them on the same machine and disk only.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class WriteBenchmark {
+
+    @Param({"Streaming", "Parallel", "Memory-mapped", "Compressed (gzip)"})
+    public String mode;
+
+    @Param({"16-bit signed", "32-bit float"})
+    public String type;
+
+    @Param({"64"})
+    public int slices;
+
+    @Param({"512"})
+    public int size;
+
+    private Object writer;
+    private Object header;
+    private long bytes;
+    private Path target;
+    private MethodHandle write;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double mb;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Throwable {
+        ImagePlus imp = Synthetic.stack(size, size, slices);
+        File source = File.createTempFile("benchmark-header", ".img");
+        source.deleteOnExit();
+        header = Plugins.method("RawHeader", "ofBuffer", File.class, ByteBuffer.class)
+                .invoke(source, ByteBuffer.allocate(1024));
+        int fileType = (int) Plugins.method("SaveWithHeader_", "fileTypeOf", String.class).invoke(type);
+        FileInfo fi = (FileInfo) Plugins.method("SaveWithHeader_", "exportInfo", ImagePlus.class, int.class, header.getClass())
+                .invoke(imp, fileType, header);
+        String cls;
+        switch (mode) {
+            case "Streaming": cls = "RawStackWriter"; break;
+            case "Memory-mapped": cls = "MappedStackWriter"; break;
+            case "Compressed (gzip)": cls = "GzipStackWriter"; break;
+            default: cls = "ParallelStackWriter"; break;
+        }
+        writer = Plugins.constructor(cls, FileInfo.class, ImageStack.class).invoke(fi, imp.getStack());
+        write = Plugins.method("StackWriter", "write", header.getClass(), Path.class, IntConsumer.class);
+        bytes = 1024 + (long) size * size * slices * fi.getBytesPerPixel();
+        target = Files.createTempFile("benchmark-export", ".raw");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(target);
+    }
+
+    @Benchmark
+    public void write(Bytes counter) throws Throwable {
+        IntConsumer progress = slice -> { };
+        write.invoke(writer, header, target, progress);
+        counter.mb += bytes / 1e6;
+    }
+}